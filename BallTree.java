@@ -0,0 +1,263 @@
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * A ball tree over the rows of a dataset. Each node is bounded by a sphere
+ * around the centroid of its rows; internal nodes split their rows at the
+ * median projection onto the line between the two most distant rows.
+ * Searches skip any ball that lies entirely beyond the current k-th nearest
+ * distance. Unlike a k-d tree the bound does not degrade with axis-aligned
+ * splits, so this holds up better as the dimensionality grows.
+ *
+ * Nodes are kept in flat arrays rather than as node objects.
+ *
+ * @author AbstractOwl
+ */
+class BallTree implements NeighborIndex {
+	private static final int LEAF_SIZE = 16;
+	// Tolerance for rounding in the triangle inequality bound
+	private static final double SLACK = 1.0 + 1e-9;
+
+	private final double[][] data;
+	private final int dims;
+	private final int[] perm;
+	private final double[] projection;
+
+	private int nodes;
+	private int[] start;
+	private int[] end;
+	private int[] left;
+	private int[] right;
+	private double[] radius;
+	private double[] centers;
+
+	/**
+	 * Builds a tree over a dataset.
+	 * @param data Rows to index; rows are not copied
+	 * @param dims Number of leading columns to index
+	 */
+	public BallTree(double[][] data, int dims) {
+		this.data = data;
+		this.dims = dims;
+		this.perm = new int[data.length];
+		for (int i = 0; i < perm.length; ++i) {
+			perm[i] = i;
+		}
+		this.projection = new double[data.length];
+
+		int capacity = Math.max(1, 4 * data.length / LEAF_SIZE);
+		start   = new int[capacity];
+		end     = new int[capacity];
+		left    = new int[capacity];
+		right   = new int[capacity];
+		radius  = new double[capacity];
+		centers = new double[capacity * dims];
+		nodes   = 0;
+
+		build(0, data.length);
+	}
+
+	private BallTree(double[][] data, int dims, int[] perm, int nodes,
+			int[] start, int[] end, int[] left, int[] right, double[] radius,
+			double[] centers) {
+		this.data = data;
+		this.dims = dims;
+		this.perm = perm;
+		this.projection = null;
+		this.nodes = nodes;
+		this.start = start;
+		this.end = end;
+		this.left = left;
+		this.right = right;
+		this.radius = radius;
+		this.centers = centers;
+	}
+
+	@Override
+	public void write(ModelFile.Writer out) throws IOException {
+		out.putInt(dims);
+		out.putInts(perm);
+		out.putInt(nodes);
+		out.putInts(Arrays.copyOf(start, nodes));
+		out.putInts(Arrays.copyOf(end, nodes));
+		out.putInts(Arrays.copyOf(left, nodes));
+		out.putInts(Arrays.copyOf(right, nodes));
+		out.putDoubles(radius, 0, nodes);
+		out.putDoubles(centers, 0, nodes * dims);
+	}
+
+	/**
+	 * Reads a tree written by write.
+	 * @param in Model file to read from
+	 * @param data Rows the tree was built over
+	 * @return The tree
+	 */
+	static BallTree read(ModelFile.Reader in, double[][] data)
+			throws IOException {
+		int dims = in.getInt();
+		int[] perm = in.getInts();
+		int nodes = in.getInt();
+		BallTree tree = new BallTree(data, dims, perm, nodes, in.getInts(),
+				in.getInts(), in.getInts(), in.getInts(), in.getDoubles(),
+				in.getDoubles());
+		KdTree.checkNodes(in, data, dims, perm, nodes, tree.start, tree.end,
+				tree.left, tree.right);
+		if (tree.radius.length != nodes
+				|| tree.centers.length != (long) nodes * dims) {
+			throw in.corrupt("tree spheres do not match its nodes");
+		}
+		return tree;
+	}
+
+	private int newNode(int lo, int hi) {
+		if (nodes == start.length) {
+			int capacity = 2 * nodes;
+			start   = Arrays.copyOf(start, capacity);
+			end     = Arrays.copyOf(end, capacity);
+			left    = Arrays.copyOf(left, capacity);
+			right   = Arrays.copyOf(right, capacity);
+			radius  = Arrays.copyOf(radius, capacity);
+			centers = Arrays.copyOf(centers, capacity * dims);
+		}
+		start[nodes] = lo;
+		end[nodes]   = hi;
+		left[nodes]  = -1;
+		right[nodes] = -1;
+		return nodes++;
+	}
+
+	private int build(int lo, int hi) {
+		int node = newNode(lo, hi);
+		int offset = node * dims;
+
+		// Bounding sphere around the centroid
+		for (int i = lo; i < hi; ++i) {
+			double[] row = data[perm[i]];
+			for (int j = 0; j < dims; ++j) {
+				centers[offset + j] += row[j];
+			}
+		}
+		for (int j = 0; j < dims; ++j) {
+			centers[offset + j] /= (hi - lo);
+		}
+		int farthest = lo;
+		double max = 0.0;
+		for (int i = lo; i < hi; ++i) {
+			double d = centerDistance(node, data[perm[i]]);
+			if (d > max) {
+				max = d;
+				farthest = i;
+			}
+		}
+		radius[node] = Math.sqrt(max);
+
+		if (hi - lo <= LEAF_SIZE || max == 0.0) {
+			return node;
+		}
+
+		// Split at the median projection onto the axis between two far rows
+		double[] a = data[perm[farthest]];
+		double[] b = a;
+		max = 0.0;
+		for (int i = lo; i < hi; ++i) {
+			double d = squaredDistance(a, data[perm[i]]);
+			if (d > max) {
+				max = d;
+				b = data[perm[i]];
+			}
+		}
+		for (int i = lo; i < hi; ++i) {
+			double[] row = data[perm[i]];
+			double t = 0.0;
+			for (int j = 0; j < dims; ++j) {
+				t += (row[j] - a[j]) * (b[j] - a[j]);
+			}
+			projection[i] = t;
+		}
+
+		int mid = (lo + hi) >>> 1;
+		select(lo, hi, mid);
+
+		int l = build(lo, mid);
+		int r = build(mid, hi);
+		left[node]  = l;
+		right[node] = r;
+		return node;
+	}
+
+	/**
+	 * Partially sorts perm[lo, hi) by projection so that position k holds the
+	 * k-th smallest projection.
+	 */
+	private void select(int lo, int hi, int k) {
+		hi--;
+		while (lo < hi) {
+			double pivot = projection[(lo + hi) >>> 1];
+			int i = lo;
+			int j = hi;
+			while (i <= j) {
+				while (projection[i] < pivot) ++i;
+				while (projection[j] > pivot) --j;
+				if (i <= j) {
+					int t = perm[i];
+					perm[i] = perm[j];
+					perm[j] = t;
+					double p = projection[i];
+					projection[i] = projection[j];
+					projection[j] = p;
+					++i;
+					--j;
+				}
+			}
+			if (k <= j) {
+				hi = j;
+			} else if (k >= i) {
+				lo = i;
+			} else {
+				return;
+			}
+		}
+	}
+
+	private double squaredDistance(double[] point, double[] row) {
+		return Distances.squaredEuclidean(point, row, dims);
+	}
+
+	private double centerDistance(int node, double[] point) {
+		return Distances.squaredEuclidean(point, 0, centers, node * dims, dims);
+	}
+
+	@Override
+	public void search(double[] point, NeighborHeap heap) {
+		search(0, point, heap, Math.sqrt(centerDistance(0, point)));
+	}
+
+	private void search(int node, double[] point, NeighborHeap heap,
+			double center) {
+		double gap = center - radius[node];
+		if (gap > 0 && gap * gap > heap.bound() * SLACK) {
+			return;
+		}
+
+		if (left[node] < 0) {
+			for (int i = start[node]; i < end[node]; ++i) {
+				int row = perm[i];
+				double d = squaredDistance(point, data[row]);
+				if (d <= heap.bound()) {
+					heap.offer(d, row);
+				}
+			}
+			return;
+		}
+
+		double l = Math.sqrt(centerDistance(left[node], point));
+		double r = Math.sqrt(centerDistance(right[node], point));
+		if (l <= r) {
+			search(left[node], point, heap, l);
+			search(right[node], point, heap, r);
+		} else {
+			search(right[node], point, heap, r);
+			search(left[node], point, heap, l);
+		}
+	}
+}
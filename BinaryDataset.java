@@ -0,0 +1,427 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Binary dataset files, which are read by mapping them into memory with no
+ * parsing at all. The layout, all little-endian:
+ *
+ *   offset  0  magic "MLDS"
+ *           4  int version
+ *           8  long M, the number of rows
+ *          16  int N, the number of values per row
+ *          20  int dtype, bytes per value: 8 for doubles, 4 for floats
+ *          24  long modification time of the text file it was made from, ms
+ *          32  long length of the text file it was made from, bytes
+ *          40  M * N values, row-major
+ *
+ * Unlike the text header, N counts every value stored in a row, so the N of
+ * a knn training file includes its label.
+ *
+ * ChunkedScan keeps a double copy of each text file it reads next to it,
+ * named after it with a ".bin" suffix, and reads that copy instead for as
+ * long as the text file's modification time and length match the copy's.
+ *
+ * @author AbstractOwl
+ */
+final class BinaryDataset {
+	// "MLDS" read as a little-endian int
+	private static final int MAGIC = 0x53444c4d;
+	private static final int VERSION = 1;
+	static final int HEADER = 40;
+	static final int FLOAT64 = 8;
+	static final int FLOAT32 = 4;
+	// Bytes buffered per part before they are written out
+	private static final int BUFFER = 1 << 16;
+
+	/**
+	 * The fields of a binary file's header.
+	 */
+	static final class Header {
+		final long rows;
+		final int columns;
+		final int dtype;
+		final long modified;
+		final long length;
+
+		Header(long rows, int columns, int dtype, long modified, long length) {
+			this.rows = rows;
+			this.columns = columns;
+			this.dtype = dtype;
+			this.modified = modified;
+			this.length = length;
+		}
+	}
+
+	private BinaryDataset() {
+	}
+
+	/**
+	 * @param source Path to a text data file
+	 * @return Path to its binary copy
+	 */
+	static String cachePath(String source) {
+		return source + ".bin";
+	}
+
+	/**
+	 * Reads the header of a binary file.
+	 * @param channel Channel of the file
+	 * @param filename Path to the file, for error messages
+	 * @return The header, or null if the file is not a binary dataset
+	 */
+	static Header header(FileChannel channel, String filename)
+			throws IOException {
+		long size = channel.size();
+		ByteBuffer buffer = ByteBuffer.allocate(HEADER)
+				.order(ByteOrder.LITTLE_ENDIAN);
+		while (buffer.hasRemaining()
+				&& channel.read(buffer, buffer.position()) >= 0) {
+		}
+		if (buffer.position() < 4 || buffer.getInt(0) != MAGIC) {
+			return null;
+		}
+		if (buffer.position() < HEADER) {
+			throw new IllegalArgumentException("Truncated header in "
+					+ filename);
+		}
+		if (buffer.getInt(4) != VERSION) {
+			throw new IllegalArgumentException("Unsupported version "
+					+ buffer.getInt(4) + " of " + filename);
+		}
+		Header header = new Header(buffer.getLong(8), buffer.getInt(16),
+				buffer.getInt(20), buffer.getLong(24), buffer.getLong(32));
+		if (header.dtype != FLOAT64 && header.dtype != FLOAT32) {
+			throw new IllegalArgumentException("Unsupported dtype "
+					+ header.dtype + " of " + filename);
+		}
+		if (header.rows < 0 || header.columns < 1) {
+			throw new IllegalArgumentException("Invalid dimensions "
+					+ header.rows + " x " + header.columns + " in header of "
+					+ filename);
+		}
+		long expected = HEADER + header.rows * header.columns * header.dtype;
+		if (size != expected) {
+			throw new IllegalArgumentException("Expected " + expected
+					+ " bytes in " + filename + ", found " + size);
+		}
+		return header;
+	}
+
+	/**
+	 * Checks whether a text file has an up to date binary copy.
+	 * @param source Path to the text file
+	 * @param rows M of the text file
+	 * @param columns Values per row of the text file
+	 * @return Whether the copy exists and still matches the text file
+	 */
+	static boolean fresh(String source, long rows, int columns) {
+		File text = new File(source);
+		File cache = new File(cachePath(source));
+		if (!cache.isFile()) {
+			return false;
+		}
+		RandomAccessFile file = null;
+		try {
+			file = new RandomAccessFile(cache, "r");
+			Header header = header(file.getChannel(), cache.getPath());
+			return header != null && header.rows == rows
+					&& header.columns == columns && header.dtype == FLOAT64
+					&& header.modified == text.lastModified()
+					&& header.length == text.length();
+		} catch (IOException e) {
+			return false;
+		} catch (IllegalArgumentException e) {
+			return false;
+		} finally {
+			try {
+				if (file != null) {
+					file.close();
+				}
+			} catch (IOException e) { /* I tried... */ }
+		}
+	}
+
+	/**
+	 * Folds rows [from, to) of a binary file into a partial result.
+	 * @param channel Channel of the file
+	 * @param header Header of the file
+	 * @param from First row, inclusive
+	 * @param to Last row, exclusive
+	 * @param reducer Reducer to fold the rows with
+	 * @param partial Partial result to fold the rows into
+	 */
+	static <T> void read(FileChannel channel, Header header, long from,
+			long to, ChunkedScan.Reducer<T> reducer, T partial) {
+		int N = header.columns;
+		long stride = (long) N * header.dtype;
+		ByteBuffer bytes;
+		try {
+			bytes = channel.map(FileChannel.MapMode.READ_ONLY,
+					HEADER + from * stride, (to - from) * stride);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		bytes.order(ByteOrder.LITTLE_ENDIAN);
+		double[] row = new double[N];
+		if (header.dtype == FLOAT64) {
+			DoubleBuffer values = bytes.asDoubleBuffer();
+			for (long r = from; r < to; ++r) {
+				values.get(row);
+				reducer.add(partial, row);
+			}
+		} else {
+			FloatBuffer values = bytes.asFloatBuffer();
+			float[] narrow = new float[N];
+			for (long r = from; r < to; ++r) {
+				values.get(narrow);
+				for (int j = 0; j < N; ++j) {
+					row[j] = narrow[j];
+				}
+				reducer.add(partial, row);
+			}
+		}
+	}
+
+	/**
+	 * A binary file being written from a text file, one part per range of
+	 * the text file. The parts are written to temporary files alongside the
+	 * target and concatenated into it once every range has been read.
+	 *
+	 * An output that is not strict is only a cache: if anything goes wrong
+	 * it stops writing and leaves the target as it was, rather than failing
+	 * the read of the text file.
+	 */
+	static final class Output {
+		private final File target;
+		private final int dtype;
+		private final long modified;
+		private final long length;
+		private final boolean strict;
+		private final List<Part> parts;
+		private volatile boolean failed;
+
+		/**
+		 * @param source Path to the text file
+		 * @param target Path to the binary file to write
+		 * @param dtype FLOAT64 or FLOAT32
+		 * @param strict Whether to fail on errors, rather than give up
+		 */
+		Output(String source, String target, int dtype, boolean strict) {
+			File text = new File(source);
+			this.target = new File(target).getAbsoluteFile();
+			this.dtype = dtype;
+			this.modified = text.lastModified();
+			this.length = text.length();
+			this.strict = strict;
+			this.parts = new ArrayList<Part>();
+			this.failed = false;
+		}
+
+		/**
+		 * @return A new part, or null if it could not be created
+		 */
+		Part part() {
+			if (failed) {
+				return null;
+			}
+			try {
+				Part part = new Part(this, File.createTempFile(
+						target.getName() + ".", ".part",
+						target.getParentFile()));
+				synchronized (parts) {
+					parts.add(part);
+				}
+				return part;
+			} catch (IOException e) {
+				fail(e);
+				return null;
+			}
+		}
+
+		private void fail(IOException e) {
+			failed = true;
+			if (strict) {
+				throw new RuntimeException(e);
+			}
+		}
+
+		/**
+		 * Writes the header and the parts to the target, replacing it.
+		 * @param order Every part, in file order
+		 * @param rows Number of rows written
+		 * @param columns Values per row
+		 */
+		void commit(List<Part> order, long rows, int columns) {
+			if (failed) {
+				return;
+			}
+			File temporary = null;
+			RandomAccessFile file = null;
+			try {
+				temporary = File.createTempFile(target.getName() + ".", ".tmp",
+						target.getParentFile());
+				file = new RandomAccessFile(temporary, "rw");
+				FileChannel channel = file.getChannel();
+				ByteBuffer header = ByteBuffer.allocate(HEADER)
+						.order(ByteOrder.LITTLE_ENDIAN);
+				header.putInt(MAGIC).putInt(VERSION).putLong(rows)
+						.putInt(columns).putInt(dtype).putLong(modified)
+						.putLong(length);
+				header.flip();
+				while (header.hasRemaining()) {
+					channel.write(header);
+				}
+				for (Part part : order) {
+					part.flush();
+					FileChannel in = part.file.getChannel();
+					long size = in.size();
+					for (long done = 0; done < size; ) {
+						done += in.transferTo(done, size - done, channel);
+					}
+				}
+				file.close();
+				file = null;
+				Files.move(temporary.toPath(), target.toPath(),
+						StandardCopyOption.REPLACE_EXISTING,
+						StandardCopyOption.ATOMIC_MOVE);
+				temporary = null;
+			} catch (IOException e) {
+				fail(e);
+			} finally {
+				try {
+					if (file != null) {
+						file.close();
+					}
+				} catch (IOException e) { /* I tried... */ }
+				if (temporary != null) {
+					temporary.delete();
+				}
+			}
+		}
+
+		/**
+		 * Deletes every part.
+		 */
+		void close() {
+			synchronized (parts) {
+				for (Part part : parts) {
+					part.close();
+					part.path.delete();
+				}
+				parts.clear();
+			}
+		}
+	}
+
+	/**
+	 * The rows of one range of a text file, buffered and written to a
+	 * temporary file.
+	 */
+	static final class Part {
+		private final Output output;
+		private final File path;
+		private final RandomAccessFile file;
+		private final ByteBuffer buffer;
+
+		private Part(Output output, File path) throws IOException {
+			this.output = output;
+			this.path = path;
+			this.file = new RandomAccessFile(path, "rw");
+			this.buffer = ByteBuffer.allocateDirect(BUFFER)
+					.order(ByteOrder.LITTLE_ENDIAN);
+		}
+
+		/**
+		 * Appends a row, unless the output has failed.
+		 * @param row Values of the row
+		 */
+		void write(double[] row) {
+			if (output.failed) {
+				return;
+			}
+			try {
+				for (int j = 0; j < row.length; ++j) {
+					if (buffer.remaining() < output.dtype) {
+						drain();
+					}
+					if (output.dtype == FLOAT64) {
+						buffer.putDouble(row[j]);
+					} else {
+						buffer.putFloat((float) row[j]);
+					}
+				}
+			} catch (IOException e) {
+				output.fail(e);
+			}
+		}
+
+		private void drain() throws IOException {
+			buffer.flip();
+			FileChannel channel = file.getChannel();
+			while (buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+			buffer.clear();
+		}
+
+		private void flush() throws IOException {
+			if (buffer.position() > 0) {
+				drain();
+			}
+		}
+
+		private void close() {
+			try {
+				file.close();
+			} catch (IOException e) { /* I tried... */ }
+		}
+	}
+
+	/**
+	 * Print usage information.
+	 */
+	private static void usage() {
+		throw new IllegalArgumentException(
+				"java BinaryDataset [-float32] [-extra n] [-threads n] "
+				+ "text binary");
+	}
+
+	/**
+	 * Converts a text data file to a binary one.
+	 */
+	public static void main(String args[]) {
+		int dtype = FLOAT64;
+		int extra = 0;
+		int threads = Parallel.defaultThreads();
+		int arg = 0;
+		while (arg < args.length && args[arg].startsWith("-")) {
+			if (args[arg].equals("-float32")) {
+				dtype = FLOAT32;
+				++arg;
+			} else if (args[arg].equals("-extra") && arg + 1 < args.length) {
+				extra = Integer.parseInt(args[arg + 1], 10);
+				arg += 2;
+			} else if (args[arg].equals("-threads") && arg + 1 < args.length) {
+				threads = Integer.parseInt(args[arg + 1], 10);
+				arg += 2;
+			} else {
+				usage();
+			}
+		}
+		if (args.length - arg != 2) {
+			usage();
+		}
+
+		ChunkedScan.convert(args[arg], args[arg + 1], threads, extra, dtype);
+	}
+}
@@ -0,0 +1,146 @@
+import java.io.IOException;
+
+/**
+ * Cholesky factorization A = L L^T of a symmetric positive definite matrix,
+ * with triangular solves against the factor. Factoring costs O(d^3) once;
+ * each solve afterwards is O(d^2).
+ *
+ * @author AbstractOwl
+ */
+class Cholesky {
+	private final int n;
+	// Lower triangle of L, row-major n x n
+	private final double[] L;
+
+	/**
+	 * Factors a matrix. Only the lower triangle of a is read.
+	 * @param a Symmetric positive definite matrix
+	 * @throws IllegalArgumentException if a is not positive definite
+	 */
+	public Cholesky(double[][] a) {
+		n = a.length;
+		L = new double[n * n];
+		for (int i = 0; i < n; ++i) {
+			for (int j = 0; j <= i; ++j) {
+				double sum = a[i][j]
+						- Distances.dot(L, i * n, L, j * n, j);
+				if (i == j) {
+					if (!(sum > 0.0)) {
+						throw new IllegalArgumentException(
+								"Matrix is not positive definite");
+					}
+					L[i * n + i] = Math.sqrt(sum);
+				} else {
+					L[i * n + j] = sum / L[j * n + j];
+				}
+			}
+		}
+	}
+
+	private Cholesky(int n, double[] L) {
+		this.n = n;
+		this.L = L;
+	}
+
+	/**
+	 * Writes the factor to a model file.
+	 * @param out Model file to write to
+	 */
+	void write(ModelFile.Writer out) throws IOException {
+		out.putInt(n);
+		out.putDoubles(L);
+	}
+
+	/**
+	 * Reads a factor written by write.
+	 * @param in Model file to read from
+	 * @return The factor
+	 */
+	static Cholesky read(ModelFile.Reader in) throws IOException {
+		int n = in.getInt();
+		double[] L = in.getDoubles();
+		if (n < 0 || L.length != (long) n * n) {
+			throw in.corrupt(n + " x " + n + " factor of " + L.length
+					+ " values");
+		}
+		return new Cholesky(n, L);
+	}
+
+	public int size() {
+		return n;
+	}
+
+	/**
+	 * Solves L y = b.
+	 * @param b Right hand side
+	 * @param y Receives the solution; may be the same array as b
+	 */
+	public void forward(double[] b, double[] y) {
+		for (int i = 0; i < n; ++i) {
+			y[i] = (b[i] - Distances.dot(L, i * n, y, 0, i)) / L[i * n + i];
+		}
+	}
+
+	/**
+	 * Solves L Y = B for a block of right hand sides, one per row. Each row
+	 * of L is used against every row of the block before moving on, so L is
+	 * streamed through the cache once per block rather than once per row.
+	 * @param b Right hand sides, row-major rows x n
+	 * @param rows Number of right hand sides
+	 * @param y Receives the solutions, row-major rows x n; may be b
+	 */
+	public void forward(double[] b, int rows, double[] y) {
+		for (int i = 0; i < n; ++i) {
+			double diagonal = L[i * n + i];
+			for (int r = 0; r < rows; ++r) {
+				int offset = r * n;
+				y[offset + i] = (b[offset + i]
+						- Distances.dot(L, i * n, y, offset, i)) / diagonal;
+			}
+		}
+	}
+
+	/**
+	 * Solves L^T x = y.
+	 * @param y Right hand side
+	 * @param x Receives the solution; may be the same array as y
+	 */
+	public void backward(double[] y, double[] x) {
+		for (int i = n - 1; i >= 0; --i) {
+			double sum = y[i];
+			for (int k = i + 1; k < n; ++k) {
+				sum -= L[k * n + i] * x[k];
+			}
+			x[i] = sum / L[i * n + i];
+		}
+	}
+
+	/**
+	 * Solves A x = b.
+	 * @param b Right hand side
+	 * @return Solution x
+	 */
+	public double[] solve(double[] b) {
+		double[] x = new double[n];
+		forward(b, x);
+		backward(x, x);
+		return x;
+	}
+
+	/**
+	 * @return A^-1, row-major n x n, from one solve per column
+	 */
+	public double[] inverse() {
+		double[] result = new double[n * n];
+		double[] unit = new double[n];
+		for (int j = 0; j < n; ++j) {
+			unit[j] = 1.0;
+			double[] column = solve(unit);
+			unit[j] = 0.0;
+			for (int i = 0; i < n; ++i) {
+				result[i * n + j] = column[i];
+			}
+		}
+		return result;
+	}
+}
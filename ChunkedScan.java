@@ -0,0 +1,759 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads dataset files: a "<M> <N>" header line followed by M rows of
+ * whitespace separated numbers. This is the one loader shared by every
+ * tool.
+ *
+ * The rows are split into byte ranges that start on line boundaries. Each
+ * range is memory mapped and parsed straight from its bytes, with no
+ * String or array allocated per line or value, and folded into its own
+ * partial result on its own thread; the partials are merged pairwise at the
+ * end.
+ *
+ * Binary dataset files (see BinaryDataset) are mapped and read the same way,
+ * with nothing to parse. Each text file read is also written out as a binary
+ * copy next to it while it is parsed, and later reads of the text file read
+ * that copy instead until the text file changes.
+ *
+ * @author AbstractOwl
+ */
+final class ChunkedScan {
+	// Ranges are not split below this many bytes
+	private static final long MIN_CHUNK = 1 << 20;
+	// Ranges are always split above this many bytes, to stay mappable
+	private static final long MAX_CHUNK = 1 << 30;
+	// Powers of ten that are exact doubles
+	private static final double[] POWERS_OF_TEN = {
+		1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+		1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+	};
+
+	// Whether text files are read through binary copies
+	private static volatile boolean caching = true;
+
+	/**
+	 * Folds rows into partial results and merges them.
+	 */
+	interface Reducer<T> {
+		/**
+		 * @param columns Number of values per row
+		 * @return An empty partial result
+		 */
+		T create(int columns);
+
+		/**
+		 * @param partial Partial result to fold the row into
+		 * @param row Values of the row; only valid during the call
+		 */
+		void add(T partial, double[] row);
+
+		/**
+		 * @param left Partial result of earlier rows, which receives the merge
+		 * @param right Partial result of later rows
+		 * @return The merged result
+		 */
+		T merge(T left, T right);
+	}
+
+	/**
+	 * Receives rows in file order.
+	 */
+	interface RowHandler {
+		/**
+		 * @param row Values of the row; only valid during the call
+		 */
+		void accept(double[] row);
+	}
+
+	/**
+	 * Reduces rows to their moments.
+	 */
+	static final Reducer<Moments> MOMENTS = new Reducer<Moments>() {
+		@Override
+		public Moments create(int columns) {
+			return new Moments(columns);
+		}
+
+		@Override
+		public void add(Moments partial, double[] row) {
+			partial.add(row);
+		}
+
+		@Override
+		public Moments merge(Moments left, Moments right) {
+			left.merge(right);
+			return left;
+		}
+	};
+
+	// Discards rows
+	private static final Reducer<Void> NONE = new Reducer<Void>() {
+		@Override
+		public Void create(int columns) {
+			return null;
+		}
+
+		@Override
+		public void add(Void partial, double[] row) {
+		}
+
+		@Override
+		public Void merge(Void left, Void right) {
+			return null;
+		}
+	};
+
+	private ChunkedScan() {
+	}
+
+	/**
+	 * Turns the binary copies of text files on or off. When off, text files
+	 * are parsed on every read and no copies are read or written. On by
+	 * default.
+	 * @param enabled Whether to cache text files
+	 */
+	public static void setCaching(boolean enabled) {
+		caching = enabled;
+	}
+
+	/**
+	 * Loads every row of a dataset file into memory.
+	 * @param filename Path to the data file
+	 * @param threads Thread count
+	 * @return The rows, N values each
+	 */
+	public static double[][] load(String filename, int threads) {
+		return load(filename, threads, 0, 0, 0.0);
+	}
+
+	/**
+	 * Loads every row of a dataset file into memory, for files whose rows do
+	 * not have exactly N values.
+	 * @param filename Path to the data file
+	 * @param threads Thread count
+	 * @param extra Values per row beyond the N of the header
+	 * @param padding Slots to append to each row after its values
+	 * @param fill Value of the padding slots
+	 * @return The rows, N + extra + padding values each
+	 */
+	public static double[][] load(String filename, int threads, int extra,
+			final int padding, final double fill) {
+		List<double[]> rows = reduce(filename, threads, chunks(threads), extra,
+				new Reducer<List<double[]>>() {
+			@Override
+			public List<double[]> create(int columns) {
+				return new ArrayList<double[]>();
+			}
+
+			@Override
+			public void add(List<double[]> partial, double[] row) {
+				double[] copy = new double[row.length + padding];
+				System.arraycopy(row, 0, copy, 0, row.length);
+				for (int j = row.length; j < copy.length; ++j) {
+					copy[j] = fill;
+				}
+				partial.add(copy);
+			}
+
+			@Override
+			public List<double[]> merge(List<double[]> left,
+					List<double[]> right) {
+				left.addAll(right);
+				return left;
+			}
+		});
+		return rows.toArray(new double[rows.size()][]);
+	}
+
+	/**
+	 * Reduces every row of a dataset file.
+	 * @param filename Path to the data file
+	 * @param threads Thread count
+	 * @param reducer Reducer to fold the rows with
+	 * @return The merged result over every row
+	 */
+	public static <T> T reduce(String filename, int threads,
+			Reducer<T> reducer) {
+		return reduce(filename, threads, chunks(threads), 0, reducer);
+	}
+
+	/**
+	 * Reads the number of columns from the header of a dataset file.
+	 * @param filename Path to the data file
+	 * @return N from the "<M> <N>" header
+	 */
+	public static int columns(String filename) {
+		RandomAccessFile file = null;
+		try {
+			file = new RandomAccessFile(filename, "r");
+			BinaryDataset.Header binary = BinaryDataset.header(
+					file.getChannel(), filename);
+			if (binary != null) {
+				return binary.columns;
+			}
+			return (int) header(file.getChannel(), filename)[1];
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		} finally {
+			try {
+				if (file != null) {
+					file.close();
+				}
+			} catch (IOException e) { /* I tried... */ }
+		}
+	}
+
+	/**
+	 * Passes every row of a dataset file to a handler, in order, on the
+	 * calling thread.
+	 * @param filename Path to the data file
+	 * @param handler Handler to receive the rows
+	 */
+	public static void forEach(String filename, final RowHandler handler) {
+		reduce(filename, 1, 1, 0, new Reducer<Void>() {
+			@Override
+			public Void create(int columns) {
+				return null;
+			}
+
+			@Override
+			public void add(Void partial, double[] row) {
+				handler.accept(row);
+			}
+
+			@Override
+			public Void merge(Void left, Void right) {
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * Parses the whitespace separated values of one line.
+	 * @param bytes Buffer holding the line
+	 * @param from Position of the start of the line
+	 * @param to Position of the end of the line, exclusive
+	 * @param row Receives up to row.length values
+	 * @return Number of values on the line, which may exceed row.length
+	 */
+	public static int parseRow(ByteBuffer bytes, int from, int to,
+			double[] row) {
+		int values = 0;
+		int i = from;
+		while (i < to) {
+			byte b = bytes.get(i);
+			if (b >= 0 && b <= ' ') {
+				++i;
+				continue;
+			}
+			int end = i + 1;
+			while (end < to && !((b = bytes.get(end)) >= 0 && b <= ' ')) {
+				++end;
+			}
+			if (values < row.length) {
+				row[values] = parseDouble(bytes, i, end);
+			}
+			++values;
+			i = end;
+		}
+		return values;
+	}
+
+	/**
+	 * Parses a decimal number. Numbers of at most 15 significant digits and
+	 * a decimal exponent of at most 22 are computed as one exact integer
+	 * multiplied or divided by an exact power of ten, which IEEE arithmetic
+	 * rounds correctly (Clinger's fast path); anything else goes through
+	 * Double.parseDouble, so the result always matches it.
+	 */
+	static double parseDouble(ByteBuffer bytes, int from, int to) {
+		int i = from;
+		boolean negative = false;
+		byte b = bytes.get(i);
+		if (b == '-' || b == '+') {
+			negative = b == '-';
+			++i;
+		}
+		long mantissa = 0;
+		int significant = 0;
+		int exponent = 0;
+		boolean digits = false;
+		while (i < to && (b = bytes.get(i)) >= '0' && b <= '9') {
+			mantissa = mantissa * 10 + (b - '0');
+			if (mantissa != 0 && ++significant > 15) {
+				return slowDouble(bytes, from, to);
+			}
+			digits = true;
+			++i;
+		}
+		if (i < to && bytes.get(i) == '.') {
+			++i;
+			while (i < to && (b = bytes.get(i)) >= '0' && b <= '9') {
+				mantissa = mantissa * 10 + (b - '0');
+				if (mantissa != 0 && ++significant > 15) {
+					return slowDouble(bytes, from, to);
+				}
+				--exponent;
+				digits = true;
+				++i;
+			}
+		}
+		if (!digits) {
+			return slowDouble(bytes, from, to);
+		}
+		if (i < to && ((b = bytes.get(i)) == 'e' || b == 'E')) {
+			++i;
+			boolean negativeExponent = false;
+			if (i < to && ((b = bytes.get(i)) == '-' || b == '+')) {
+				negativeExponent = b == '-';
+				++i;
+			}
+			int value = 0;
+			int start = i;
+			while (i < to && (b = bytes.get(i)) >= '0' && b <= '9'
+					&& value < 10000) {
+				value = value * 10 + (b - '0');
+				++i;
+			}
+			if (i == start) {
+				return slowDouble(bytes, from, to);
+			}
+			exponent += negativeExponent ? -value : value;
+		}
+		if (i != to || exponent < -22 || exponent > 22) {
+			return slowDouble(bytes, from, to);
+		}
+
+		double value = mantissa;
+		if (exponent > 0) {
+			value *= POWERS_OF_TEN[exponent];
+		} else if (exponent < 0) {
+			value /= POWERS_OF_TEN[-exponent];
+		}
+		return negative ? -value : value;
+	}
+
+	private static double slowDouble(ByteBuffer bytes, int from, int to) {
+		char[] text = new char[to - from];
+		for (int i = from; i < to; ++i) {
+			text[i - from] = (char) (bytes.get(i) & 0xff);
+		}
+		return Double.parseDouble(new String(text));
+	}
+
+	private static long chunks(int threads) {
+		return (long) Math.max(1, threads) * 4;
+	}
+
+	/**
+	 * @return Number of ranges to split a span of bytes into
+	 */
+	private static int chunkCount(long bytes, long maxChunks) {
+		return (int) Math.max((bytes + MAX_CHUNK - 1) / MAX_CHUNK,
+				Math.max(1, Math.min(maxChunks, bytes / MIN_CHUNK)));
+	}
+
+	/**
+	 * Converts a text data file to a binary one.
+	 * @param source Path to the text file
+	 * @param target Path to the binary file to write
+	 * @param threads Thread count
+	 * @param extra Values per row beyond the N of the header
+	 * @param dtype BinaryDataset.FLOAT64 or BinaryDataset.FLOAT32
+	 */
+	static void convert(String source, String target, int threads, int extra,
+			int dtype) {
+		RandomAccessFile file = null;
+		try {
+			file = new RandomAccessFile(source, "r");
+			FileChannel channel = file.getChannel();
+			if (BinaryDataset.header(channel, source) != null) {
+				throw new IllegalArgumentException(source
+						+ " is already a binary dataset");
+			}
+			write(channel, source, null, extra, target, threads, dtype);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		} finally {
+			try {
+				if (file != null) {
+					file.close();
+				}
+			} catch (IOException e) { /* I tried... */ }
+		}
+	}
+
+	/**
+	 * Finds or writes a binary copy of a dataset file in double precision,
+	 * for reading its rows in place instead of loading them. A binary file of
+	 * doubles is its own copy, and a text file's cached copy is used, written
+	 * first if it is missing or stale. Anything else, such as a file of
+	 * floats or a text file with caching off, is copied to a temporary file
+	 * that is deleted on exit.
+	 * @param filename Path to the data file
+	 * @param threads Thread count
+	 * @param extra Values per row beyond the N of the header
+	 * @return Path to the copy
+	 */
+	static String doubles(String filename, int threads, int extra) {
+		RandomAccessFile file = null;
+		try {
+			file = new RandomAccessFile(filename, "r");
+			FileChannel channel = file.getChannel();
+			BinaryDataset.Header binary = BinaryDataset.header(channel,
+					filename);
+			if (binary != null && binary.dtype == BinaryDataset.FLOAT64) {
+				return filename;
+			}
+			if (binary == null && caching) {
+				long[] header = header(channel, filename);
+				int N = (int) header[1] + extra;
+				if (!BinaryDataset.fresh(filename, header[0], N)) {
+					reduce(filename, threads, chunks(threads), extra, NONE);
+				}
+				// Writing the cache gives up quietly, e.g. in a read-only
+				// directory
+				if (BinaryDataset.fresh(filename, header[0], N)) {
+					return BinaryDataset.cachePath(filename);
+				}
+			}
+			File temporary = File.createTempFile(
+					new File(filename).getName() + ".", ".bin");
+			temporary.deleteOnExit();
+			write(channel, filename, binary, extra, temporary.getPath(),
+					threads, BinaryDataset.FLOAT64);
+			return temporary.getPath();
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		} finally {
+			try {
+				if (file != null) {
+					file.close();
+				}
+			} catch (IOException e) { /* I tried... */ }
+		}
+	}
+
+	/**
+	 * Writes every row of a dataset file to a binary file.
+	 * @param channel Channel of the data file
+	 * @param source Path to the data file
+	 * @param binary Header of the data file if it is binary, or null
+	 * @param extra Values per row beyond the N of a text header
+	 * @param target Path to the binary file to write
+	 * @param threads Thread count
+	 * @param dtype BinaryDataset.FLOAT64 or BinaryDataset.FLOAT32
+	 */
+	private static void write(FileChannel channel, String source,
+			BinaryDataset.Header binary, int extra, String target, int threads,
+			int dtype) throws IOException {
+		BinaryDataset.Output output = new BinaryDataset.Output(source, target,
+				dtype, true);
+		try {
+			Tee<Void> tee = new Tee<Void>(NONE, output);
+			if (binary != null) {
+				Teed<Void> result = reduceBinary(channel, binary, threads,
+						chunks(threads), tee);
+				output.commit(result.parts, binary.rows, binary.columns);
+			} else {
+				long[] header = header(channel, source);
+				int N = (int) header[1] + extra;
+				Teed<Void> result = reduceText(channel, source, header, N,
+						threads, chunks(threads), tee);
+				output.commit(result.parts, header[0], N);
+			}
+		} finally {
+			output.close();
+		}
+	}
+
+	private static <T> T reduce(String filename, int threads, long maxChunks,
+			int extra, Reducer<T> reducer) {
+		RandomAccessFile file = null;
+		try {
+			file = new RandomAccessFile(filename, "r");
+			FileChannel channel = file.getChannel();
+			BinaryDataset.Header binary = BinaryDataset.header(channel,
+					filename);
+			if (binary != null) {
+				return reduceBinary(channel, binary, threads, maxChunks,
+						reducer);
+			}
+
+			long[] header = header(channel, filename);
+			int N = (int) header[1] + extra;
+			if (!caching) {
+				return reduceText(channel, filename, header, N, threads,
+						maxChunks, reducer);
+			}
+			String cachePath = BinaryDataset.cachePath(filename);
+			if (BinaryDataset.fresh(filename, header[0], N)) {
+				return reduce(cachePath, threads, maxChunks, 0, reducer);
+			}
+			BinaryDataset.Output cache = new BinaryDataset.Output(filename,
+					cachePath, BinaryDataset.FLOAT64, false);
+			try {
+				Teed<T> result = reduceText(channel, filename, header, N,
+						threads, maxChunks, new Tee<T>(reducer, cache));
+				cache.commit(result.parts, header[0], N);
+				return result.partial;
+			} finally {
+				cache.close();
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		} finally {
+			try {
+				if (file != null) {
+					file.close();
+				}
+			} catch (IOException e) { /* I tried... */ }
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <T> T reduceBinary(final FileChannel channel,
+			final BinaryDataset.Header header, int threads, long maxChunks,
+			final Reducer<T> reducer) {
+		final int chunks = chunkCount(
+				header.rows * header.columns * header.dtype, maxChunks);
+		final T[] partials = (T[]) new Object[chunks];
+		Parallel.forRange(chunks, threads, new Parallel.Range() {
+			@Override
+			public void run(int from, int to) {
+				for (int c = from; c < to; ++c) {
+					T partial = reducer.create(header.columns);
+					BinaryDataset.read(channel, header, header.rows * c / chunks,
+							header.rows * (c + 1) / chunks, reducer, partial);
+					partials[c] = partial;
+				}
+			}
+		});
+		return merge(partials, reducer);
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <T> T reduceText(final FileChannel channel, String filename,
+			long[] header, final int N, int threads, long maxChunks,
+			final Reducer<T> reducer) throws IOException {
+		long size = channel.size();
+		long M = header[0];
+		long start = header[2];
+
+		// Split the rows into ranges starting on line boundaries
+		int chunks = chunkCount(size - start, maxChunks);
+		final long[] bounds = new long[chunks + 1];
+		bounds[0] = start;
+		bounds[chunks] = size;
+		for (int c = 1; c < chunks; ++c) {
+			long nominal = start + (size - start) * c / chunks;
+			bounds[c] = Math.max(bounds[c - 1],
+					nextLine(channel, nominal - 1, size));
+		}
+
+		final T[] partials = (T[]) new Object[chunks];
+		final long[] rows = new long[chunks];
+		Parallel.forRange(chunks, threads, new Parallel.Range() {
+			@Override
+			public void run(int from, int to) {
+				for (int c = from; c < to; ++c) {
+					T partial = reducer.create(N);
+					rows[c] = scan(channel, bounds[c], bounds[c + 1], N,
+							reducer, partial);
+					partials[c] = partial;
+				}
+			}
+		});
+
+		long found = 0;
+		for (long r : rows) {
+			found += r;
+		}
+		if (found != M) {
+			throw new IllegalArgumentException("Expected " + M
+					+ " rows in " + filename + ", found " + found);
+		}
+		return merge(partials, reducer);
+	}
+
+	/**
+	 * Pairwise merge, keeping each merge between adjacent ranges.
+	 */
+	private static <T> T merge(T[] partials, Reducer<T> reducer) {
+		for (int step = 1; step < partials.length; step *= 2) {
+			for (int c = 0; c + step < partials.length; c += 2 * step) {
+				partials[c] = reducer.merge(partials[c], partials[c + step]);
+			}
+		}
+		return partials[0];
+	}
+
+	/**
+	 * A partial result together with the binary parts written alongside it,
+	 * in file order.
+	 */
+	private static final class Teed<T> {
+		private T partial;
+		private BinaryDataset.Part part;
+		private final List<BinaryDataset.Part> parts
+				= new ArrayList<BinaryDataset.Part>();
+	}
+
+	/**
+	 * Passes rows on to another reducer, also writing each range's rows to a
+	 * part of a binary output.
+	 */
+	private static final class Tee<T> implements Reducer<Teed<T>> {
+		private final Reducer<T> reducer;
+		private final BinaryDataset.Output output;
+
+		Tee(Reducer<T> reducer, BinaryDataset.Output output) {
+			this.reducer = reducer;
+			this.output = output;
+		}
+
+		@Override
+		public Teed<T> create(int columns) {
+			Teed<T> teed = new Teed<T>();
+			teed.partial = reducer.create(columns);
+			teed.part = output.part();
+			if (teed.part != null) {
+				teed.parts.add(teed.part);
+			}
+			return teed;
+		}
+
+		@Override
+		public void add(Teed<T> teed, double[] row) {
+			reducer.add(teed.partial, row);
+			if (teed.part != null) {
+				teed.part.write(row);
+			}
+		}
+
+		@Override
+		public Teed<T> merge(Teed<T> left, Teed<T> right) {
+			left.partial = reducer.merge(left.partial, right.partial);
+			left.parts.addAll(right.parts);
+			return left;
+		}
+	}
+
+	/**
+	 * @return M, N and the position of the first row
+	 */
+	private static long[] header(FileChannel channel, String filename)
+			throws IOException {
+		long start = nextLine(channel, 0, channel.size());
+		String[] header = read(channel, 0, start).trim().split("\\s+");
+		if (header.length != 2) {
+			throw new IllegalArgumentException("Expected first line of file "
+					+ filename + " to be <M> <N>");
+		}
+		long M;
+		int N;
+		try {
+			M = Long.parseLong(header[0], 10);
+			N = Integer.parseInt(header[1], 10);
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Expected first line of file "
+					+ filename + " to be <M> <N>");
+		}
+		if (M < 0 || N < 1) {
+			throw new IllegalArgumentException("Invalid dimensions " + M + " x "
+					+ N + " in header of " + filename);
+		}
+		return new long[] { M, N, start };
+	}
+
+	/**
+	 * Folds the rows in [from, to) into a partial result.
+	 * @return Number of rows read
+	 */
+	private static <T> long scan(FileChannel channel, long from, long to,
+			int N, Reducer<T> reducer, T partial) {
+		ByteBuffer bytes;
+		try {
+			bytes = channel.map(FileChannel.MapMode.READ_ONLY, from, to - from);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		int limit = bytes.limit();
+		double[] row = new double[N];
+		long rows = 0;
+		int values = 0;
+		int i = 0;
+		// One pass over the bytes, ending a row at each newline
+		while (i <= limit) {
+			byte b = i < limit ? bytes.get(i) : (byte) '\n';
+			if (b == '\n') {
+				if (values > 0) {
+					if (values != N) {
+						throw new IllegalArgumentException("Expected " + N
+								+ " parameters, found " + values);
+					}
+					reducer.add(partial, row);
+					++rows;
+					values = 0;
+				}
+				++i;
+				continue;
+			}
+			if (b >= 0 && b <= ' ') {
+				++i;
+				continue;
+			}
+			int end = i + 1;
+			while (end < limit && !((b = bytes.get(end)) >= 0 && b <= ' ')) {
+				++end;
+			}
+			if (values < N) {
+				row[values] = parseDouble(bytes, i, end);
+			}
+			++values;
+			i = end;
+		}
+		return rows;
+	}
+
+	/**
+	 * @return Position just past the first newline at or after position, or
+	 *         size if there is none
+	 */
+	private static long nextLine(FileChannel channel, long position, long size)
+			throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(4096);
+		while (position < size) {
+			buffer.clear();
+			int read = channel.read(buffer, position);
+			if (read < 0) {
+				break;
+			}
+			for (int i = 0; i < read; ++i) {
+				if (buffer.get(i) == '\n') {
+					return position + i + 1;
+				}
+			}
+			position += read;
+		}
+		return size;
+	}
+
+	private static String read(FileChannel channel, long from, long to)
+			throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate((int) (to - from));
+		while (buffer.hasRemaining()
+				&& channel.read(buffer, from + buffer.position()) >= 0) {
+		}
+		return new String(buffer.array(), 0, buffer.position(),
+				StandardCharsets.ISO_8859_1);
+	}
+}
@@ -0,0 +1,297 @@
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * A brute-force index over a compact copy of the training rows. Rows are
+ * stored contiguously, either as single precision floats or as bytes
+ * quantized with a per-dimension scale, so a scan streams a quarter or an
+ * eighth of the bytes of the double[][] rows and touches no row objects.
+ *
+ * The scan keeps the best rerank * k candidates by their approximate
+ * distance, then re-ranks those candidates against the original rows in
+ * double precision. Results are exact as long as the true neighbors survive
+ * the approximate scan; raise rerank if they do not. The original rows are
+ * read in place from a memory-mapped file (see MappedRows), so the compact
+ * copy is all the index keeps on the heap.
+ *
+ * @author AbstractOwl
+ */
+class CompactIndex implements NeighborIndex {
+	/**
+	 * Storage formats for the compact copy.
+	 */
+	public enum Format {
+		FLOAT32,
+		INT8
+	}
+
+	// Rows are split across blocks so large sets fit in Java arrays
+	private static final int BLOCK_ROWS = 1 << 16;
+
+	private final MappedRows data;
+	private final int dims;
+	private final Format format;
+	private final int rerank;
+
+	private final float[][] floatBlocks;
+	private final byte[][] byteBlocks;
+	// INT8: value = offset[j] + scale[j] * (code + 128)
+	private final double[] offset;
+	private final double[] scale;
+	private final float[] weights;
+
+	private final ThreadLocal<Scratch> scratch = new ThreadLocal<Scratch>() {
+		@Override
+		protected Scratch initialValue() {
+			return new Scratch(dims, data.columns());
+		}
+	};
+
+	/**
+	 * Builds a compact copy of a dataset.
+	 * @param data Rows to index; kept for re-ranking
+	 * @param dims Number of leading columns to index
+	 * @param format Storage format of the compact copy
+	 * @param rerank Candidates re-ranked per neighbor requested
+	 */
+	public CompactIndex(MappedRows data, int dims, Format format, int rerank) {
+		if (rerank < 1) {
+			throw new IllegalArgumentException("Rerank factor must be positive");
+		}
+		this.data = data;
+		this.dims = dims;
+		this.format = format;
+		this.rerank = rerank;
+
+		int n = data.rows();
+		double[] row = new double[data.columns()];
+		int blocks = (n + BLOCK_ROWS - 1) / BLOCK_ROWS;
+		if (format == Format.FLOAT32) {
+			floatBlocks = new float[blocks][];
+			byteBlocks  = null;
+			offset  = null;
+			scale   = null;
+			weights = null;
+			for (int b = 0; b < blocks; ++b) {
+				int rows = Math.min(BLOCK_ROWS, n - b * BLOCK_ROWS);
+				float[] block = floatBlocks[b] = new float[rows * dims];
+				for (int i = 0; i < rows; ++i) {
+					data.get(b * BLOCK_ROWS + i, row);
+					for (int j = 0; j < dims; ++j) {
+						block[i * dims + j] = (float) row[j];
+					}
+				}
+			}
+		} else {
+			floatBlocks = null;
+			byteBlocks  = new byte[blocks][];
+			offset  = new double[dims];
+			scale   = new double[dims];
+			weights = new float[dims];
+
+			// Spread each dimension's range over the 256 codes
+			double[] max = new double[dims];
+			Arrays.fill(offset, Double.POSITIVE_INFINITY);
+			Arrays.fill(max, Double.NEGATIVE_INFINITY);
+			for (int i = 0; i < n; ++i) {
+				data.get(i, row);
+				for (int j = 0; j < dims; ++j) {
+					offset[j] = Math.min(offset[j], row[j]);
+					max[j] = Math.max(max[j], row[j]);
+				}
+			}
+			for (int j = 0; j < dims; ++j) {
+				scale[j]   = max[j] > offset[j]
+						? (max[j] - offset[j]) / 255.0 : 1.0;
+				weights[j] = (float) (scale[j] * scale[j]);
+			}
+			for (int b = 0; b < blocks; ++b) {
+				int rows = Math.min(BLOCK_ROWS, n - b * BLOCK_ROWS);
+				byte[] block = byteBlocks[b] = new byte[rows * dims];
+				for (int i = 0; i < rows; ++i) {
+					data.get(b * BLOCK_ROWS + i, row);
+					for (int j = 0; j < dims; ++j) {
+						long code = Math.round((row[j] - offset[j]) / scale[j]);
+						block[i * dims + j] = (byte) (Math.max(0, Math.min(255, code))
+								- 128);
+					}
+				}
+			}
+		}
+	}
+
+	private CompactIndex(MappedRows data, int dims, Format format, int rerank,
+			float[][] floatBlocks, byte[][] byteBlocks, double[] offset,
+			double[] scale, float[] weights) {
+		this.data = data;
+		this.dims = dims;
+		this.format = format;
+		this.rerank = rerank;
+		this.floatBlocks = floatBlocks;
+		this.byteBlocks = byteBlocks;
+		this.offset = offset;
+		this.scale = scale;
+		this.weights = weights;
+	}
+
+	/**
+	 * Checks that block b of an index read from a model file holds the
+	 * values of exactly the rows it covers.
+	 * @throws IOException if it does not
+	 */
+	private static void checkBlock(ModelFile.Reader in, int values, int b,
+			int rows, int dims) throws IOException {
+		int blockRows = Math.min(BLOCK_ROWS, rows - b * BLOCK_ROWS);
+		if (values != (long) blockRows * dims) {
+			throw in.corrupt("index does not match the training rows");
+		}
+	}
+
+	@Override
+	public void write(ModelFile.Writer out) throws IOException {
+		out.putInt(dims);
+		out.putString(format.name());
+		out.putInt(rerank);
+		if (format == Format.FLOAT32) {
+			out.putInt(floatBlocks.length);
+			for (float[] block : floatBlocks) {
+				out.putFloats(block);
+			}
+		} else {
+			out.putInt(byteBlocks.length);
+			for (byte[] block : byteBlocks) {
+				out.putBytes(block);
+			}
+			out.putDoubles(offset);
+			out.putDoubles(scale);
+			out.putFloats(weights);
+		}
+	}
+
+	/**
+	 * Reads an index written by write.
+	 * @param in Model file to read from
+	 * @param data Rows the index was built over
+	 * @return The index
+	 */
+	static CompactIndex read(ModelFile.Reader in, MappedRows data)
+			throws IOException {
+		int dims = in.getInt();
+		String name = in.getString();
+		int rerank = in.getInt();
+		int blocks = in.getInt();
+		int n = data.rows();
+		if (n == 0 || dims < 1 || dims > data.columns()) {
+			throw in.corrupt(dims + " dimensions");
+		}
+		if (rerank < 1) {
+			throw in.corrupt("rerank factor " + rerank);
+		}
+		if (blocks != (n + BLOCK_ROWS - 1) / BLOCK_ROWS) {
+			throw in.corrupt("index does not match the training rows");
+		}
+		Format format;
+		if (name.equals(Format.FLOAT32.name())) {
+			format = Format.FLOAT32;
+		} else if (name.equals(Format.INT8.name())) {
+			format = Format.INT8;
+		} else {
+			throw in.corrupt("unknown format " + name);
+		}
+		float[][] floatBlocks = null;
+		byte[][] byteBlocks = null;
+		double[] offset = null;
+		double[] scale = null;
+		float[] weights = null;
+		if (format == Format.FLOAT32) {
+			floatBlocks = new float[blocks][];
+			for (int b = 0; b < blocks; ++b) {
+				floatBlocks[b] = in.getFloats();
+				checkBlock(in, floatBlocks[b].length, b, n, dims);
+			}
+		} else {
+			byteBlocks = new byte[blocks][];
+			for (int b = 0; b < blocks; ++b) {
+				byteBlocks[b] = in.getBytes();
+				checkBlock(in, byteBlocks[b].length, b, n, dims);
+			}
+			offset = in.getDoubles();
+			scale = in.getDoubles();
+			weights = in.getFloats();
+			if (offset.length != dims || scale.length != dims
+					|| weights.length != dims) {
+				throw in.corrupt("index does not match the training rows");
+			}
+		}
+		return new CompactIndex(data, dims, format, rerank, floatBlocks,
+				byteBlocks, offset, scale, weights);
+	}
+
+	@Override
+	public void search(double[] point, NeighborHeap heap) {
+		Scratch s = scratch.get();
+		NeighborHeap candidates = s.candidates(rerank * heap.capacity());
+		candidates.clear();
+
+		if (format == Format.FLOAT32) {
+			for (int j = 0; j < dims; ++j) {
+				s.query[j] = (float) point[j];
+			}
+			for (int b = 0; b < floatBlocks.length; ++b) {
+				float[] block = floatBlocks[b];
+				int base = b * BLOCK_ROWS;
+				for (int i = 0, rows = block.length / dims; i < rows; ++i) {
+					double d = Distances.squaredEuclidean(s.query, 0, block,
+							i * dims, dims);
+					if (d <= candidates.bound()) {
+						candidates.offer(d, base + i);
+					}
+				}
+			}
+		} else {
+			for (int j = 0; j < dims; ++j) {
+				s.query[j] = (float) ((point[j] - offset[j]) / scale[j] - 128.0);
+			}
+			for (int b = 0; b < byteBlocks.length; ++b) {
+				byte[] block = byteBlocks[b];
+				int base = b * BLOCK_ROWS;
+				for (int i = 0, rows = block.length / dims; i < rows; ++i) {
+					double d = Distances.weightedSquaredEuclidean(s.query, weights,
+							block, i * dims, dims);
+					if (d <= candidates.bound()) {
+						candidates.offer(d, base + i);
+					}
+				}
+			}
+		}
+
+		// Re-rank in full precision
+		for (int i = 0; i < candidates.size(); ++i) {
+			int row = candidates.index(i);
+			data.get(row, s.row);
+			heap.offer(Distances.squaredEuclidean(point, s.row, dims), row);
+		}
+	}
+
+	/**
+	 * Per-thread search state, reused between queries.
+	 */
+	private static class Scratch {
+		final float[] query;
+		// A row being re-ranked
+		final double[] row;
+		NeighborHeap candidates;
+
+		Scratch(int dims, int columns) {
+			query = new float[dims];
+			row = new double[columns];
+		}
+
+		NeighborHeap candidates(int capacity) {
+			if (candidates == null || candidates.capacity() != capacity) {
+				candidates = new NeighborHeap(capacity);
+			}
+			return candidates;
+		}
+	}
+}
@@ -0,0 +1,209 @@
+/**
+ * Distance and dot product kernels shared by the classifiers.
+ *
+ * When the JDK Vector API is available (run with
+ * {@code --add-modules jdk.incubator.vector}) the kernels are backed by
+ * {@link SimdDistances}, which uses the widest SIMD registers of the machine.
+ * Otherwise they fall back to the scalar loops in this class.
+ *
+ * @author AbstractOwl
+ */
+final class Distances {
+	/**
+	 * A kernel implementation.
+	 */
+	interface Kernel {
+		double squaredEuclidean(double[] a, int aOffset, double[] b,
+				int bOffset, int length);
+
+		void squaredEuclidean(double[] query, double[][] rows, int from,
+				int to, int length, double[] out);
+
+		double dot(double[] a, int aOffset, double[] b, int bOffset,
+				int length);
+
+		double squaredEuclidean(float[] a, int aOffset, float[] b,
+				int bOffset, int length);
+
+		double weightedSquaredEuclidean(float[] query, float[] weights,
+				byte[] codes, int offset, int length);
+	}
+
+	// Rows measured together by the one query, many rows kernel
+	static final int ROWS_PER_PASS = 4;
+
+	private static final Kernel KERNEL = load();
+
+	private Distances() {
+	}
+
+	private static Kernel load() {
+		try {
+			return (Kernel) Class.forName("SimdDistances")
+					.getDeclaredConstructor().newInstance();
+		} catch (LinkageError e) {
+			// Vector API module not present
+		} catch (ReflectiveOperationException e) {
+			// SimdDistances not compiled in
+		}
+		return new Scalar();
+	}
+
+	/**
+	 * @return true if the kernels are SIMD accelerated
+	 */
+	public static boolean isVectorized() {
+		return !(KERNEL instanceof Scalar);
+	}
+
+	/**
+	 * Computes the squared L2 distance between the first length elements of
+	 * two arrays.
+	 */
+	public static double squaredEuclidean(double[] a, double[] b, int length) {
+		return KERNEL.squaredEuclidean(a, 0, b, 0, length);
+	}
+
+	/**
+	 * Computes the squared L2 distance between two slices of flat arrays.
+	 */
+	public static double squaredEuclidean(double[] a, int aOffset, double[] b,
+			int bOffset, int length) {
+		return KERNEL.squaredEuclidean(a, aOffset, b, bOffset, length);
+	}
+
+	/**
+	 * Computes the squared L2 distance from one query to each of a range of
+	 * rows. Rows are measured ROWS_PER_PASS at a time, so each slice of the
+	 * query is loaded once for all of them and their sums accumulate
+	 * independently. Each distance equals the single pair kernel's.
+	 * @param query Query point
+	 * @param rows Rows to measure against
+	 * @param from First row, inclusive
+	 * @param to Last row, exclusive
+	 * @param length Number of leading columns to compare
+	 * @param out Receives the distance to rows[from + i] at out[i]
+	 */
+	public static void squaredEuclidean(double[] query, double[][] rows,
+			int from, int to, int length, double[] out) {
+		KERNEL.squaredEuclidean(query, rows, from, to, length, out);
+	}
+
+	/**
+	 * Computes the dot product of the first length elements of two arrays.
+	 */
+	public static double dot(double[] a, double[] b, int length) {
+		return KERNEL.dot(a, 0, b, 0, length);
+	}
+
+	/**
+	 * Computes the dot product of two slices of flat arrays.
+	 */
+	public static double dot(double[] a, int aOffset, double[] b, int bOffset,
+			int length) {
+		return KERNEL.dot(a, aOffset, b, bOffset, length);
+	}
+
+	/**
+	 * Computes the squared L2 distance between two slices of single
+	 * precision arrays.
+	 */
+	public static double squaredEuclidean(float[] a, int aOffset, float[] b,
+			int bOffset, int length) {
+		return KERNEL.squaredEuclidean(a, aOffset, b, bOffset, length);
+	}
+
+	/**
+	 * Computes sum(weights[i] * (query[i] - codes[offset + i])^2), the
+	 * squared L2 distance between a query and a row quantized to bytes with a
+	 * per-dimension scale, where weights are the squared scales and the query
+	 * has been mapped into code space.
+	 */
+	public static double weightedSquaredEuclidean(float[] query,
+			float[] weights, byte[] codes, int offset, int length) {
+		return KERNEL.weightedSquaredEuclidean(query, weights, codes, offset,
+				length);
+	}
+
+	/**
+	 * Plain loops, used when the Vector API is not available.
+	 */
+	static final class Scalar implements Kernel {
+		@Override
+		public double squaredEuclidean(double[] a, int aOffset, double[] b,
+				int bOffset, int length) {
+			double accum = 0.0;
+			for (int i = 0; i < length; ++i) {
+				double d = a[aOffset + i] - b[bOffset + i];
+				accum += d * d;
+			}
+			return accum;
+		}
+
+		@Override
+		public void squaredEuclidean(double[] query, double[][] rows,
+				int from, int to, int length, double[] out) {
+			int i = from;
+			for (; i + ROWS_PER_PASS <= to; i += ROWS_PER_PASS) {
+				double[] r0 = rows[i];
+				double[] r1 = rows[i + 1];
+				double[] r2 = rows[i + 2];
+				double[] r3 = rows[i + 3];
+				double accum0 = 0.0;
+				double accum1 = 0.0;
+				double accum2 = 0.0;
+				double accum3 = 0.0;
+				for (int j = 0; j < length; ++j) {
+					double q = query[j];
+					double d0 = q - r0[j];
+					double d1 = q - r1[j];
+					double d2 = q - r2[j];
+					double d3 = q - r3[j];
+					accum0 += d0 * d0;
+					accum1 += d1 * d1;
+					accum2 += d2 * d2;
+					accum3 += d3 * d3;
+				}
+				out[i - from]     = accum0;
+				out[i - from + 1] = accum1;
+				out[i - from + 2] = accum2;
+				out[i - from + 3] = accum3;
+			}
+			for (; i < to; ++i) {
+				out[i - from] = squaredEuclidean(query, 0, rows[i], 0, length);
+			}
+		}
+
+		@Override
+		public double dot(double[] a, int aOffset, double[] b, int bOffset,
+				int length) {
+			double accum = 0.0;
+			for (int i = 0; i < length; ++i) {
+				accum += a[aOffset + i] * b[bOffset + i];
+			}
+			return accum;
+		}
+
+		@Override
+		public double squaredEuclidean(float[] a, int aOffset, float[] b,
+				int bOffset, int length) {
+			float accum = 0.0f;
+			for (int i = 0; i < length; ++i) {
+				float d = a[aOffset + i] - b[bOffset + i];
+				accum += d * d;
+			}
+			return accum;
+		}
+
+		@Override
+		public double weightedSquaredEuclidean(float[] query, float[] weights,
+				byte[] codes, int offset, int length) {
+			float accum = 0.0f;
+			for (int i = 0; i < length; ++i) {
+				float d = query[i] - codes[offset + i];
+				accum += weights[i] * d * d;
+			}
+			return accum;
+		}
+	}
+}
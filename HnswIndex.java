@@ -0,0 +1,499 @@
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * An approximate nearest neighbor index based on a hierarchical navigable
+ * small world (HNSW) graph. Every row is a vertex linked to a handful of
+ * nearby rows on layer 0 and, with geometrically decreasing probability, on
+ * sparser upper layers. A query descends greedily through the upper layers
+ * and then runs a best-first search of width efSearch on layer 0.
+ *
+ * Results are not guaranteed to be exact: raising efSearch trades latency for
+ * recall. Searches only read the graph, so one index can serve many threads.
+ *
+ * @author AbstractOwl
+ */
+class HnswIndex implements NeighborIndex {
+	private final double[][] data;
+	private final int dims;
+	private final int m;
+	private final int m0;
+	private final int efConstruction;
+	private volatile int efSearch;
+
+	private final int[] levels;
+	// Layer 0 links: m0 slots per row plus a count
+	private final int[] links0;
+	private final int[] count0;
+	// Upper layer links: for each row, (m + 1) slots per layer, count first
+	private final int[][] upper;
+	private int entryPoint;
+	private int maxLevel;
+
+	private final ThreadLocal<Scratch> scratch = new ThreadLocal<Scratch>() {
+		@Override
+		protected Scratch initialValue() {
+			return new Scratch(data.length);
+		}
+	};
+
+	/**
+	 * Builds a graph over a dataset.
+	 * @param data Rows to index; rows are not copied
+	 * @param dims Number of leading columns to index
+	 * @param m Links per row on upper layers (twice this on layer 0)
+	 * @param efConstruction Search width used while linking rows
+	 * @param efSearch Search width used by queries
+	 * @param seed Seed for the layer assignment
+	 */
+	public HnswIndex(double[][] data, int dims, int m, int efConstruction,
+			int efSearch, long seed) {
+		if (m < 2 || efConstruction < 1 || efSearch < 1) {
+			throw new IllegalArgumentException("Invalid HNSW parameters");
+		}
+		this.data = data;
+		this.dims = dims;
+		this.m = m;
+		this.m0 = 2 * m;
+		this.efConstruction = Math.max(efConstruction, m0);
+		this.efSearch = efSearch;
+
+		int n = data.length;
+		levels = new int[n];
+		links0 = new int[n * m0];
+		count0 = new int[n];
+		upper  = new int[n][];
+
+		Random random = new Random(seed);
+		double scale = 1.0 / Math.log(m);
+		entryPoint = -1;
+		maxLevel = -1;
+		for (int i = 0; i < n; ++i) {
+			int level = (int) (-Math.log(1.0 - random.nextDouble()) * scale);
+			levels[i] = level;
+			if (level > 0) {
+				upper[i] = new int[level * (m + 1)];
+			}
+			insert(i);
+		}
+	}
+
+	private HnswIndex(double[][] data, int dims, int m, int efConstruction,
+			int efSearch, int[] levels, int[] links0, int[] count0,
+			int[][] upper, int entryPoint, int maxLevel) {
+		this.data = data;
+		this.dims = dims;
+		this.m = m;
+		this.m0 = 2 * m;
+		this.efConstruction = efConstruction;
+		this.efSearch = efSearch;
+		this.levels = levels;
+		this.links0 = links0;
+		this.count0 = count0;
+		this.upper = upper;
+		this.entryPoint = entryPoint;
+		this.maxLevel = maxLevel;
+	}
+
+	@Override
+	public void write(ModelFile.Writer out) throws IOException {
+		out.putInt(dims);
+		out.putInt(m);
+		out.putInt(efConstruction);
+		out.putInt(efSearch);
+		out.putInt(entryPoint);
+		out.putInt(maxLevel);
+		out.putInts(levels);
+		out.putInts(links0);
+		out.putInts(count0);
+		for (int i = 0; i < levels.length; ++i) {
+			if (levels[i] > 0) {
+				out.putInts(upper[i]);
+			}
+		}
+	}
+
+	/**
+	 * Reads a graph written by write.
+	 * @param in Model file to read from
+	 * @param data Rows the graph was built over
+	 * @return The graph
+	 */
+	static HnswIndex read(ModelFile.Reader in, double[][] data)
+			throws IOException {
+		int dims = in.getInt();
+		int m = in.getInt();
+		int efConstruction = in.getInt();
+		int efSearch = in.getInt();
+		int entryPoint = in.getInt();
+		int maxLevel = in.getInt();
+		int[] levels = in.getInts();
+		int[] links0 = in.getInts();
+		int[] count0 = in.getInts();
+		int n = data.length;
+		if (n == 0 || dims < 1 || dims > data[0].length) {
+			throw in.corrupt(dims + " dimensions");
+		}
+		if (m < 2 || efSearch < 1 || levels.length != n
+				|| links0.length != (long) n * 2 * m || count0.length != n) {
+			throw in.corrupt("graph does not match the training rows");
+		}
+		if (entryPoint < 0 || entryPoint >= n
+				|| levels[entryPoint] != maxLevel) {
+			throw in.corrupt("entry point out of range");
+		}
+		for (int i = 0; i < n; ++i) {
+			if (levels[i] < 0 || levels[i] > maxLevel) {
+				throw in.corrupt("level out of range");
+			}
+			checkLinks(in, links0, i * 2 * m, count0[i], 2 * m, levels, 0);
+		}
+		int[][] upper = new int[n][];
+		for (int i = 0; i < n; ++i) {
+			if (levels[i] > 0) {
+				upper[i] = in.getInts();
+				if (upper[i].length != (long) levels[i] * (m + 1)) {
+					throw in.corrupt("graph does not match the training rows");
+				}
+				for (int layer = 1; layer <= levels[i]; ++layer) {
+					int offset = (layer - 1) * (m + 1);
+					checkLinks(in, upper[i], offset + 1, upper[i][offset], m,
+							levels, layer);
+				}
+			}
+		}
+		return new HnswIndex(data, dims, m, efConstruction, efSearch, levels,
+				links0, count0, upper, entryPoint, maxLevel);
+	}
+
+	/**
+	 * Checks one row's links on one layer: at most max of them, each to a
+	 * row that is on that layer.
+	 * @throws IOException if a link is out of range
+	 */
+	private static void checkLinks(ModelFile.Reader in, int[] links,
+			int from, int count, int max, int[] levels, int layer)
+			throws IOException {
+		if (count < 0 || count > max) {
+			throw in.corrupt("link count out of range");
+		}
+		for (int j = from; j < from + count; ++j) {
+			if (links[j] < 0 || links[j] >= levels.length
+					|| levels[links[j]] < layer) {
+				throw in.corrupt("link out of range");
+			}
+		}
+	}
+
+	/**
+	 * Sets the search width used by queries. Larger values raise recall and
+	 * latency.
+	 */
+	public void setEfSearch(int efSearch) {
+		if (efSearch < 1) {
+			throw new IllegalArgumentException("efSearch must be positive");
+		}
+		this.efSearch = efSearch;
+	}
+
+	public int getEfSearch() {
+		return efSearch;
+	}
+
+	private double squaredDistance(double[] point, double[] row) {
+		return Distances.squaredEuclidean(point, row, dims);
+	}
+
+	private int linkCount(int row, int layer) {
+		return layer == 0 ? count0[row] : upper[row][(layer - 1) * (m + 1)];
+	}
+
+	private int link(int row, int layer, int i) {
+		return layer == 0 ? links0[row * m0 + i]
+				: upper[row][(layer - 1) * (m + 1) + 1 + i];
+	}
+
+	private void setLinks(int row, int layer, NeighborHeap selected) {
+		if (layer == 0) {
+			for (int i = 0; i < selected.size(); ++i) {
+				links0[row * m0 + i] = selected.index(i);
+			}
+			count0[row] = selected.size();
+		} else {
+			int offset = (layer - 1) * (m + 1);
+			for (int i = 0; i < selected.size(); ++i) {
+				upper[row][offset + 1 + i] = selected.index(i);
+			}
+			upper[row][offset] = selected.size();
+		}
+	}
+
+	private void addLink(int row, int layer, int target) {
+		if (layer == 0) {
+			links0[row * m0 + count0[row]++] = target;
+		} else {
+			int offset = (layer - 1) * (m + 1);
+			upper[row][offset + 1 + upper[row][offset]++] = target;
+		}
+	}
+
+	private void insert(int row) {
+		if (entryPoint < 0) {
+			entryPoint = row;
+			maxLevel = levels[row];
+			return;
+		}
+
+		Scratch s = scratch.get();
+		double[] point = data[row];
+		int level = levels[row];
+
+		int ep = greedy(point, maxLevel, level);
+		for (int layer = Math.min(level, maxLevel); layer >= 0; --layer) {
+			NeighborHeap found = s.results(efConstruction);
+			searchLayer(point, ep, efConstruction, layer, found, s);
+			found.sort();
+			ep = found.index(0);
+
+			int max = layer == 0 ? m0 : m;
+			NeighborHeap selected = new NeighborHeap(max);
+			selectNeighbors(found, max, selected);
+			setLinks(row, layer, selected);
+
+			// Link back, pruning the neighbor's list if it overflows
+			NeighborHeap candidates = new NeighborHeap(max + 1);
+			NeighborHeap kept = new NeighborHeap(max);
+			for (int i = 0; i < selected.size(); ++i) {
+				int neighbor = selected.index(i);
+				int count = linkCount(neighbor, layer);
+				if (count < max) {
+					addLink(neighbor, layer, row);
+					continue;
+				}
+				candidates.clear();
+				for (int j = 0; j < count; ++j) {
+					int other = link(neighbor, layer, j);
+					candidates.offer(squaredDistance(data[neighbor], data[other]),
+							other);
+				}
+				candidates.offer(selected.distance(i), row);
+				candidates.sort();
+				selectNeighbors(candidates, max, kept);
+				setLinks(neighbor, layer, kept);
+			}
+		}
+
+		if (level > maxLevel) {
+			maxLevel = level;
+			entryPoint = row;
+		}
+	}
+
+	/**
+	 * Picks up to max neighbors from candidates sorted nearest first,
+	 * preferring candidates that are closer to the base row than to any
+	 * neighbor already picked so links point in diverse directions.
+	 */
+	private void selectNeighbors(NeighborHeap candidates, int max,
+			NeighborHeap selected) {
+		selected.clear();
+		boolean[] taken = new boolean[candidates.size()];
+		int picked = 0;
+		for (int i = 0; i < candidates.size() && picked < max; ++i) {
+			double[] row = data[candidates.index(i)];
+			boolean keep = true;
+			for (int j = 0; j < i && keep; ++j) {
+				if (taken[j] && squaredDistance(row, data[candidates.index(j)])
+						< candidates.distance(i)) {
+					keep = false;
+				}
+			}
+			if (keep) {
+				taken[i] = true;
+				++picked;
+			}
+		}
+		for (int i = 0; i < candidates.size(); ++i) {
+			if (taken[i]) {
+				selected.offer(candidates.distance(i), candidates.index(i));
+			}
+		}
+		selected.sort();
+	}
+
+	/**
+	 * Descends greedily from the entry point through the layers above
+	 * stopLevel.
+	 * @return Nearest row found on layer stopLevel + 1
+	 */
+	private int greedy(double[] point, int fromLevel, int stopLevel) {
+		int current = entryPoint;
+		double best = squaredDistance(point, data[current]);
+		for (int layer = fromLevel; layer > stopLevel; --layer) {
+			boolean changed = true;
+			while (changed) {
+				changed = false;
+				int from = current;
+				int count = linkCount(from, layer);
+				for (int i = 0; i < count; ++i) {
+					int next = link(from, layer, i);
+					double d = squaredDistance(point, data[next]);
+					if (d < best) {
+						best = d;
+						current = next;
+						changed = true;
+					}
+				}
+			}
+		}
+		return current;
+	}
+
+	/**
+	 * Best-first search of one layer, collecting the ef nearest rows found
+	 * into results.
+	 */
+	private void searchLayer(double[] point, int ep, int ef, int layer,
+			NeighborHeap results, Scratch s) {
+		int stamp = s.nextStamp();
+		s.candidates.clear();
+		results.clear();
+
+		double d = squaredDistance(point, data[ep]);
+		s.visited[ep] = stamp;
+		s.candidates.push(d, ep);
+		results.offer(d, ep);
+
+		while (s.candidates.size() > 0) {
+			double nearest = s.candidates.peekDistance();
+			if (nearest > results.bound()) {
+				break;
+			}
+			int current = s.candidates.pop();
+			int count = linkCount(current, layer);
+			for (int i = 0; i < count; ++i) {
+				int next = link(current, layer, i);
+				if (s.visited[next] == stamp) {
+					continue;
+				}
+				s.visited[next] = stamp;
+				double dn = squaredDistance(point, data[next]);
+				if (dn <= results.bound()) {
+					s.candidates.push(dn, next);
+					results.offer(dn, next);
+				}
+			}
+		}
+	}
+
+	@Override
+	public void search(double[] point, NeighborHeap heap) {
+		if (entryPoint < 0) {
+			return;
+		}
+		Scratch s = scratch.get();
+		int ef = Math.max(efSearch, heap.capacity());
+		NeighborHeap found = s.results(ef);
+		searchLayer(point, greedy(point, maxLevel, 0), ef, 0, found, s);
+		for (int i = 0; i < found.size(); ++i) {
+			heap.offer(found.distance(i), found.index(i));
+		}
+	}
+
+	/**
+	 * Per-thread search state, reused between queries.
+	 */
+	private static class Scratch {
+		final int[] visited;
+		int stamp;
+		final MinHeap candidates = new MinHeap();
+		NeighborHeap results;
+
+		Scratch(int rows) {
+			visited = new int[rows];
+			stamp = 0;
+		}
+
+		int nextStamp() {
+			if (++stamp == 0) { // Wrapped around; forget old marks
+				Arrays.fill(visited, 0);
+				stamp = 1;
+			}
+			return stamp;
+		}
+
+		NeighborHeap results(int capacity) {
+			if (results == null || results.capacity() != capacity) {
+				results = new NeighborHeap(capacity);
+			}
+			return results;
+		}
+	}
+
+	/**
+	 * An unbounded min-heap of (distance, row) pairs backed by growable
+	 * primitive arrays.
+	 */
+	private static class MinHeap {
+		private double[] distances = new double[64];
+		private int[] indices = new int[64];
+		private int size = 0;
+
+		void clear() {
+			size = 0;
+		}
+
+		int size() {
+			return size;
+		}
+
+		double peekDistance() {
+			return distances[0];
+		}
+
+		void push(double distance, int index) {
+			if (size == distances.length) {
+				distances = Arrays.copyOf(distances, 2 * size);
+				indices   = Arrays.copyOf(indices, 2 * size);
+			}
+			int i = size++;
+			while (i > 0) {
+				int parent = (i - 1) >>> 1;
+				if (distances[parent] <= distance) {
+					break;
+				}
+				distances[i] = distances[parent];
+				indices[i]   = indices[parent];
+				i = parent;
+			}
+			distances[i] = distance;
+			indices[i]   = index;
+		}
+
+		int pop() {
+			int top = indices[0];
+			double distance = distances[--size];
+			int index = indices[size];
+			int i = 0;
+			while (true) {
+				int child = 2 * i + 1;
+				if (child >= size) {
+					break;
+				}
+				if (child + 1 < size && distances[child + 1] < distances[child]) {
+					++child;
+				}
+				if (distances[child] >= distance) {
+					break;
+				}
+				distances[i] = distances[child];
+				indices[i]   = indices[child];
+				i = child;
+			}
+			distances[i] = distance;
+			indices[i]   = index;
+			return top;
+		}
+	}
+}
@@ -0,0 +1,334 @@
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Iterative least squares solvers for y = w.x + T that never form X^T X,
+ * for feature counts where the O(d^3) closed form is out of reach. Each
+ * iteration costs O(n d) time and the solvers need only O(d) memory beyond
+ * the rows themselves.
+ *
+ * Rows are centered implicitly: the solvers fit w on (x - mean_x) against
+ * (y - mean_y) without copying the data, and T = mean_y - w.mean_x. Each
+ * solve runs its loops on one pool of threads, started once.
+ *
+ * @author AbstractOwl
+ */
+class IterativeLeastSquares {
+	private final double[][] rows;
+	private final int n;
+	private final int d;
+	private final double[] mean;
+	private final double yMean;
+	private final int threads;
+	// Pool of the solve in progress, or null
+	private ExecutorService pool;
+	private double tolerance;
+	private int maxIterations;
+
+	/**
+	 * @param rows Rows of d features followed by the target
+	 * @param threads Thread count
+	 */
+	public IterativeLeastSquares(final double[][] rows, int threads) {
+		this.rows = rows;
+		this.n = rows.length;
+		this.d = rows[0].length - 1;
+		this.threads = threads;
+		this.tolerance = 1e-6;
+		this.maxIterations = 1000;
+
+		final double[] sums = new double[d + 1];
+		final int chunks = chunks();
+		final double[][] partial = new double[chunks][d + 1];
+		Parallel.forRange(chunks, threads, new Parallel.Range() {
+			@Override
+			public void run(int from, int to) {
+				for (int c = from; c < to; ++c) {
+					double[] sum = partial[c];
+					for (int i = start(c); i < start(c + 1); ++i) {
+						for (int j = 0; j <= d; ++j) {
+							sum[j] += rows[i][j];
+						}
+					}
+				}
+			}
+		});
+		for (int c = 0; c < chunks; ++c) {
+			for (int j = 0; j <= d; ++j) {
+				sums[j] += partial[c][j];
+			}
+		}
+		this.mean = new double[d];
+		for (int j = 0; j < d; ++j) {
+			mean[j] = sums[j] / n;
+		}
+		this.yMean = sums[d] / n;
+	}
+
+	/**
+	 * Sets the convergence tolerance. Conjugate gradient stops once the
+	 * normal equation residual |X^T r| has shrunk by this factor; gradient
+	 * descent stops once an epoch improves the mean squared error by less
+	 * than this fraction.
+	 * @param tolerance Relative tolerance
+	 */
+	public void setTolerance(double tolerance) {
+		if (!(tolerance > 0.0)) {
+			throw new IllegalArgumentException("Tolerance must be positive");
+		}
+		this.tolerance = tolerance;
+	}
+
+	/**
+	 * @param maxIterations Iteration (or epoch) limit
+	 */
+	public void setMaxIterations(int maxIterations) {
+		if (maxIterations < 1) {
+			throw new IllegalArgumentException(
+					"Iteration limit must be positive");
+		}
+		this.maxIterations = maxIterations;
+	}
+
+	/**
+	 * @param w Weights
+	 * @return The intercept T that goes with the weights
+	 */
+	public double intercept(double[] w) {
+		return yMean - Distances.dot(w, mean, d);
+	}
+
+	/**
+	 * Solves the least squares problem with conjugate gradient on the normal
+	 * equations (CGLS), which touches X only through products X p and
+	 * X^T r. Prints the residual and time of each iteration to standard
+	 * error, keeping standard output for results.
+	 * @return Weights w
+	 */
+	public double[] conjugateGradient() {
+		pool = Parallel.newPool(threads);
+		try {
+			return solveConjugateGradient();
+		} finally {
+			Parallel.shutdown(pool);
+			pool = null;
+		}
+	}
+
+	private double[] solveConjugateGradient() {
+		double[] w = new double[d];
+		double[] r = new double[n];
+		double[] q = new double[n];
+		for (int i = 0; i < n; ++i) {
+			r[i] = rows[i][d] - yMean;
+		}
+		double[] s = transposeTimes(r);
+		double[] p = s.clone();
+		double gamma = Distances.dot(s, s, d);
+		double initial = Math.sqrt(gamma);
+
+		for (int iteration = 1; iteration <= maxIterations
+				&& gamma > 0.0; ++iteration) {
+			long start = System.nanoTime();
+			times(p, q);
+			double alpha = gamma / Distances.dot(q, q, n);
+			for (int j = 0; j < d; ++j) {
+				w[j] += alpha * p[j];
+			}
+			for (int i = 0; i < n; ++i) {
+				r[i] -= alpha * q[i];
+			}
+			s = transposeTimes(r);
+			double next = Distances.dot(s, s, d);
+			double residual = Math.sqrt(next);
+			System.err.println("CG iteration " + iteration + ": |X^T r| = "
+					+ residual + " (" + (System.nanoTime() - start) / 1000000
+					+ " ms)");
+			if (residual <= tolerance * initial) {
+				break;
+			}
+			double beta = next / gamma;
+			for (int j = 0; j < d; ++j) {
+				p[j] = s[j] + beta * p[j];
+			}
+			gamma = next;
+		}
+		return w;
+	}
+
+	/**
+	 * Solves the least squares problem with mini-batch stochastic gradient
+	 * descent on the mean squared error. The learning rate of epoch e is
+	 * rate / (1 + decay * e). Prints the error and time of each epoch to
+	 * standard error.
+	 * @param batch Rows per mini-batch
+	 * @param rate Initial learning rate; 0 picks 1 / tr(Cov(x)), which is
+	 *             below the stability limit of the full gradient step
+	 * @param decay Learning rate decay per epoch
+	 * @param seed Seed for shuffling the rows each epoch
+	 * @return Weights w
+	 */
+	public double[] gradientDescent(int batch, double rate, double decay,
+			long seed) {
+		if (batch < 1) {
+			throw new IllegalArgumentException("Batch size must be positive");
+		}
+		pool = Parallel.newPool(threads);
+		try {
+			return solveGradientDescent(batch, rate, decay, seed);
+		} finally {
+			Parallel.shutdown(pool);
+			pool = null;
+		}
+	}
+
+	private double[] solveGradientDescent(int batch, double rate,
+			double decay, long seed) {
+		if (rate <= 0.0) {
+			double trace = 0.0;
+			for (double[] row : rows) {
+				for (int j = 0; j < d; ++j) {
+					double x = row[j] - mean[j];
+					trace += x * x;
+				}
+			}
+			rate = trace > 0.0 ? n / trace : 1.0;
+		}
+
+		double[] w = new double[d];
+		double[] gradient = new double[d];
+		int[] order = new int[n];
+		for (int i = 0; i < n; ++i) {
+			order[i] = i;
+		}
+		Random random = new Random(seed);
+		double previous = meanSquaredError(w);
+
+		for (int epoch = 0; epoch < maxIterations; ++epoch) {
+			long start = System.nanoTime();
+			for (int i = n - 1; i > 0; --i) {
+				int j = random.nextInt(i + 1);
+				int swap = order[i];
+				order[i] = order[j];
+				order[j] = swap;
+			}
+
+			double step = rate / (1.0 + decay * epoch);
+			for (int from = 0; from < n; from += batch) {
+				int to = Math.min(n, from + batch);
+				double offset = Distances.dot(w, mean, d);
+				double residuals = 0.0;
+				Arrays.fill(gradient, 0.0);
+				for (int b = from; b < to; ++b) {
+					double[] row = rows[order[b]];
+					double residual = (row[d] - yMean)
+							- (Distances.dot(w, row, d) - offset);
+					residuals += residual;
+					for (int j = 0; j < d; ++j) {
+						gradient[j] += residual * row[j];
+					}
+				}
+				double scale = step / (to - from);
+				for (int j = 0; j < d; ++j) {
+					w[j] += scale * (gradient[j] - residuals * mean[j]);
+				}
+			}
+
+			double error = meanSquaredError(w);
+			System.err.println("SGD epoch " + (epoch + 1) + ": MSE = " + error
+					+ " (" + (System.nanoTime() - start) / 1000000 + " ms)");
+			if (Math.abs(previous - error) <= tolerance * previous) {
+				break;
+			}
+			previous = error;
+		}
+		return w;
+	}
+
+	private int chunks() {
+		return (int) Math.max(1, Math.min(n, (long) threads * 4));
+	}
+
+	private int start(int chunk) {
+		return (int) ((long) n * chunk / chunks());
+	}
+
+	/**
+	 * q = (X - 1 mean^T) p
+	 */
+	private void times(final double[] p, final double[] q) {
+		final double offset = Distances.dot(p, mean, d);
+		Parallel.forRange(pool, n, threads, new Parallel.Range() {
+			@Override
+			public void run(int from, int to) {
+				for (int i = from; i < to; ++i) {
+					q[i] = Distances.dot(rows[i], p, d) - offset;
+				}
+			}
+		});
+	}
+
+	/**
+	 * (X - 1 mean^T)^T r, with each chunk of rows summed into its own
+	 * partial vector
+	 */
+	private double[] transposeTimes(final double[] r) {
+		final int chunks = chunks();
+		final double[][] partial = new double[chunks][];
+		Parallel.forRange(pool, chunks, threads, new Parallel.Range() {
+			@Override
+			public void run(int from, int to) {
+				for (int c = from; c < to; ++c) {
+					double[] sum = new double[d + 1];
+					for (int i = start(c); i < start(c + 1); ++i) {
+						double ri = r[i];
+						double[] row = rows[i];
+						for (int j = 0; j < d; ++j) {
+							sum[j] += ri * row[j];
+						}
+						sum[d] += ri;
+					}
+					partial[c] = sum;
+				}
+			}
+		});
+		double[] result = new double[d];
+		double total = 0.0;
+		for (int c = 0; c < chunks; ++c) {
+			for (int j = 0; j < d; ++j) {
+				result[j] += partial[c][j];
+			}
+			total += partial[c][d];
+		}
+		for (int j = 0; j < d; ++j) {
+			result[j] -= total * mean[j];
+		}
+		return result;
+	}
+
+	private double meanSquaredError(final double[] w) {
+		final double offset = Distances.dot(w, mean, d);
+		final int chunks = chunks();
+		final double[] partial = new double[chunks];
+		Parallel.forRange(pool, chunks, threads, new Parallel.Range() {
+			@Override
+			public void run(int from, int to) {
+				for (int c = from; c < to; ++c) {
+					double sum = 0.0;
+					for (int i = start(c); i < start(c + 1); ++i) {
+						double residual = (rows[i][d] - yMean)
+								- (Distances.dot(w, rows[i], d) - offset);
+						sum += residual * residual;
+					}
+					partial[c] = sum;
+				}
+			}
+		});
+		double sum = 0.0;
+		for (double value : partial) {
+			sum += value;
+		}
+		return sum / n;
+	}
+}
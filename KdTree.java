@@ -0,0 +1,267 @@
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * A k-d tree over the rows of a dataset. Each internal node splits its rows at
+ * the median of the dimension with the greatest spread; searches descend into
+ * the nearer child first and skip the farther one when the splitting plane is
+ * beyond the current k-th nearest distance.
+ *
+ * Nodes are kept in flat arrays rather than as node objects.
+ *
+ * @author AbstractOwl
+ */
+class KdTree implements NeighborIndex {
+	private static final int LEAF_SIZE = 16;
+
+	private final double[][] data;
+	private final int dims;
+	private final int[] perm;
+
+	private int nodes;
+	private int[] start;
+	private int[] end;
+	private int[] left;
+	private int[] right;
+	private int[] splitDim;
+	private double[] splitValue;
+
+	/**
+	 * Builds a tree over a dataset.
+	 * @param data Rows to index; rows are not copied
+	 * @param dims Number of leading columns to index
+	 */
+	public KdTree(double[][] data, int dims) {
+		this.data = data;
+		this.dims = dims;
+		this.perm = new int[data.length];
+		for (int i = 0; i < perm.length; ++i) {
+			perm[i] = i;
+		}
+
+		int capacity = Math.max(1, 4 * data.length / LEAF_SIZE);
+		start      = new int[capacity];
+		end        = new int[capacity];
+		left       = new int[capacity];
+		right      = new int[capacity];
+		splitDim   = new int[capacity];
+		splitValue = new double[capacity];
+		nodes      = 0;
+
+		build(0, data.length);
+	}
+
+	private KdTree(double[][] data, int dims, int[] perm, int nodes,
+			int[] start, int[] end, int[] left, int[] right, int[] splitDim,
+			double[] splitValue) {
+		this.data = data;
+		this.dims = dims;
+		this.perm = perm;
+		this.nodes = nodes;
+		this.start = start;
+		this.end = end;
+		this.left = left;
+		this.right = right;
+		this.splitDim = splitDim;
+		this.splitValue = splitValue;
+	}
+
+	@Override
+	public void write(ModelFile.Writer out) throws IOException {
+		out.putInt(dims);
+		out.putInts(perm);
+		out.putInt(nodes);
+		out.putInts(Arrays.copyOf(start, nodes));
+		out.putInts(Arrays.copyOf(end, nodes));
+		out.putInts(Arrays.copyOf(left, nodes));
+		out.putInts(Arrays.copyOf(right, nodes));
+		out.putInts(Arrays.copyOf(splitDim, nodes));
+		out.putDoubles(splitValue, 0, nodes);
+	}
+
+	/**
+	 * Reads a tree written by write.
+	 * @param in Model file to read from
+	 * @param data Rows the tree was built over
+	 * @return The tree
+	 */
+	static KdTree read(ModelFile.Reader in, double[][] data)
+			throws IOException {
+		int dims = in.getInt();
+		int[] perm = in.getInts();
+		int nodes = in.getInt();
+		KdTree tree = new KdTree(data, dims, perm, nodes, in.getInts(),
+				in.getInts(), in.getInts(), in.getInts(), in.getInts(),
+				in.getDoubles());
+		checkNodes(in, data, dims, perm, nodes, tree.start, tree.end,
+				tree.left, tree.right);
+		if (tree.splitDim.length != nodes || tree.splitValue.length != nodes) {
+			throw in.corrupt("tree splits do not match its nodes");
+		}
+		for (int node = 0; node < nodes; ++node) {
+			int dim = tree.splitDim[node];
+			if (tree.left[node] >= 0 && (dim < 0 || dim >= dims)) {
+				throw in.corrupt("split dimension out of range");
+			}
+		}
+		return tree;
+	}
+
+	/**
+	 * Checks the layout a tree read from a model file shares with BallTree:
+	 * perm is a permutation of the rows, every node covers a range of it,
+	 * and every internal node has two children numbered after it, so
+	 * searches stay in bounds and end.
+	 * @throws IOException if the layout does not hold together
+	 */
+	static void checkNodes(ModelFile.Reader in, double[][] data, int dims,
+			int[] perm, int nodes, int[] start, int[] end, int[] left,
+			int[] right) throws IOException {
+		if (data.length == 0 || dims < 1 || dims > data[0].length) {
+			throw in.corrupt(dims + " dimensions");
+		}
+		if (perm.length != data.length) {
+			throw in.corrupt("tree does not match the training rows");
+		}
+		boolean[] seen = new boolean[perm.length];
+		for (int i = 0; i < perm.length; ++i) {
+			if (perm[i] < 0 || perm[i] >= perm.length || seen[perm[i]]) {
+				throw in.corrupt("tree rows are not a permutation");
+			}
+			seen[perm[i]] = true;
+		}
+		if (nodes < 1 || start.length != nodes || end.length != nodes
+				|| left.length != nodes || right.length != nodes) {
+			throw in.corrupt("tree arrays do not match " + nodes + " nodes");
+		}
+		for (int node = 0; node < nodes; ++node) {
+			if (start[node] < 0 || start[node] > end[node]
+					|| end[node] > perm.length) {
+				throw in.corrupt("tree node range out of bounds");
+			}
+			boolean leaf = left[node] < 0 && right[node] < 0;
+			if (!leaf && (left[node] <= node || left[node] >= nodes
+					|| right[node] <= node || right[node] >= nodes)) {
+				throw in.corrupt("tree child index out of range");
+			}
+		}
+	}
+
+	private int newNode(int lo, int hi) {
+		if (nodes == start.length) {
+			int capacity = 2 * nodes;
+			start      = Arrays.copyOf(start, capacity);
+			end        = Arrays.copyOf(end, capacity);
+			left       = Arrays.copyOf(left, capacity);
+			right      = Arrays.copyOf(right, capacity);
+			splitDim   = Arrays.copyOf(splitDim, capacity);
+			splitValue = Arrays.copyOf(splitValue, capacity);
+		}
+		start[nodes] = lo;
+		end[nodes]   = hi;
+		left[nodes]  = -1;
+		right[nodes] = -1;
+		return nodes++;
+	}
+
+	private int build(int lo, int hi) {
+		int node = newNode(lo, hi);
+		if (hi - lo <= LEAF_SIZE) {
+			return node;
+		}
+
+		// Split along the dimension of greatest spread
+		int dim = 0;
+		double spread = 0.0;
+		for (int j = 0; j < dims; ++j) {
+			double min = Double.POSITIVE_INFINITY;
+			double max = Double.NEGATIVE_INFINITY;
+			for (int i = lo; i < hi; ++i) {
+				double v = data[perm[i]][j];
+				if (v < min) min = v;
+				if (v > max) max = v;
+			}
+			if (max - min > spread) {
+				spread = max - min;
+				dim = j;
+			}
+		}
+		if (spread == 0.0) { // All rows identical
+			return node;
+		}
+
+		int mid = (lo + hi) >>> 1;
+		select(lo, hi, mid, dim);
+		splitDim[node]   = dim;
+		splitValue[node] = data[perm[mid]][dim];
+
+		int l = build(lo, mid);
+		int r = build(mid, hi);
+		left[node]  = l;
+		right[node] = r;
+		return node;
+	}
+
+	/**
+	 * Partially sorts perm[lo, hi) so that the row at position k holds the
+	 * k-th smallest value of a dimension, with smaller or equal values before
+	 * it and greater or equal values after it.
+	 */
+	private void select(int lo, int hi, int k, int dim) {
+		hi--;
+		while (lo < hi) {
+			double pivot = data[perm[(lo + hi) >>> 1]][dim];
+			int i = lo;
+			int j = hi;
+			while (i <= j) {
+				while (data[perm[i]][dim] < pivot) ++i;
+				while (data[perm[j]][dim] > pivot) --j;
+				if (i <= j) {
+					int t = perm[i];
+					perm[i] = perm[j];
+					perm[j] = t;
+					++i;
+					--j;
+				}
+			}
+			if (k <= j) {
+				hi = j;
+			} else if (k >= i) {
+				lo = i;
+			} else {
+				return;
+			}
+		}
+	}
+
+	private double squaredDistance(double[] point, double[] row) {
+		return Distances.squaredEuclidean(point, row, dims);
+	}
+
+	@Override
+	public void search(double[] point, NeighborHeap heap) {
+		search(0, point, heap);
+	}
+
+	private void search(int node, double[] point, NeighborHeap heap) {
+		if (left[node] < 0) {
+			for (int i = start[node]; i < end[node]; ++i) {
+				int row = perm[i];
+				double d = squaredDistance(point, data[row]);
+				if (d <= heap.bound()) {
+					heap.offer(d, row);
+				}
+			}
+			return;
+		}
+
+		double diff = point[splitDim[node]] - splitValue[node];
+		int near = diff < 0 ? left[node] : right[node];
+		int far  = diff < 0 ? right[node] : left[node];
+
+		search(near, point, heap);
+		if (diff * diff <= heap.bound()) {
+			search(far, point, heap);
+		}
+	}
+}
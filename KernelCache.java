@@ -0,0 +1,273 @@
+import java.util.Arrays;
+
+/**
+ * Caches rows of the Gaussian kernel (Gram) matrix of a training set so each
+ * kernel value is evaluated once rather than once per epoch.
+ *
+ * If the full n x n matrix fits in the memory budget it is computed up front,
+ * in parallel. Otherwise rows are computed on demand and kept in a
+ * least-recently-used cache sized to the budget; the slots of evicted rows
+ * are reused, so a warm cache does not allocate.
+ *
+ * A cache can also be derived from a precomputed matrix of squared
+ * distances, which several caches with different sigmas can share; rows are
+ * then computed from the distances with one exp per entry.
+ *
+ * @author AbstractOwl
+ */
+class KernelCache {
+	// Edge of the square tiles the distance matrix is computed in
+	private static final int TILE = 64;
+
+	private final double[][] X;
+	private final double sigmaSquared;
+	private final double[][] gram;
+	private long evaluations;
+
+	// Distance mode: rows are derived from shared squared distances
+	private final double[][] distances;
+	private final double[] buffer;
+
+	// LRU mode: cached rows live in slots linked from most to least recent
+	private double[][] slots;
+	private int[] slotOf;
+	private int[] rowIn;
+	private int[] prev;
+	private int[] next;
+	private int head;
+	private int tail;
+	private int used;
+
+	/**
+	 * @param X Training rows
+	 * @param sigma Kernel width
+	 * @param budget Bytes available for cached kernel values
+	 * @param threads Threads used to compute the full matrix
+	 */
+	public KernelCache(final double[][] X, double sigma, long budget,
+			int threads) {
+		this.X = X;
+		this.sigmaSquared = sigma * sigma;
+		this.distances = null;
+		this.buffer = null;
+		final int n = X.length;
+		long rowBytes = 8L * n;
+
+		if (rowBytes * n <= budget) {
+			gram = new double[n][n];
+			// Upper triangle, pairing short rows with long ones for balance
+			Parallel.forRange((n + 1) / 2, threads, new Parallel.Range() {
+				@Override
+				public void run(int from, int to) {
+					for (int p = from; p < to; ++p) {
+						fillUpper(p);
+						if (n - 1 - p != p) {
+							fillUpper(n - 1 - p);
+						}
+					}
+				}
+			});
+			Parallel.forRange(n, threads, new Parallel.Range() {
+				@Override
+				public void run(int from, int to) {
+					for (int i = from; i < to; ++i) {
+						for (int j = 0; j < i; ++j) {
+							gram[i][j] = gram[j][i];
+						}
+					}
+				}
+			});
+			evaluations = (long) n * (n + 1) / 2;
+		} else {
+			gram = null;
+			int capacity = (int) Math.max(1, Math.min(n, budget / rowBytes));
+			slots  = new double[capacity][];
+			rowIn  = new int[capacity];
+			prev   = new int[capacity];
+			next   = new int[capacity];
+			slotOf = new int[n];
+			Arrays.fill(slotOf, -1);
+			head = tail = -1;
+			used = 0;
+			evaluations = 0;
+		}
+	}
+
+	private KernelCache(double[][] distances, double sigma) {
+		this.X = null;
+		this.sigmaSquared = sigma * sigma;
+		this.gram = null;
+		this.distances = distances;
+		this.buffer = new double[distances.length];
+		this.evaluations = 0;
+	}
+
+	/**
+	 * Creates a cache whose rows are derived from a shared matrix of squared
+	 * distances, such as one computed by {@link #squaredDistances}. Rows are
+	 * computed on every call into a single buffer.
+	 * @param distances Squared distances between every pair of rows
+	 * @param sigma Kernel width
+	 */
+	public static KernelCache fromDistances(double[][] distances, double sigma) {
+		return new KernelCache(distances, sigma);
+	}
+
+	/**
+	 * Computes the squared distance between every pair of rows. The upper
+	 * triangle is computed in square tiles, so each tile's rows stay in
+	 * cache, with tile rows split across threads; the lower triangle is then
+	 * mirrored.
+	 * @param X Rows
+	 * @param threads Thread count
+	 * @return Symmetric n x n matrix of squared distances
+	 */
+	public static double[][] squaredDistances(final double[][] X, int threads) {
+		final int n = X.length;
+		final double[][] result = new double[n][n];
+		final int tiles = (n + TILE - 1) / TILE;
+		// Pair short tile rows with long ones for balance
+		Parallel.forRange((tiles + 1) / 2, threads, new Parallel.Range() {
+			@Override
+			public void run(int from, int to) {
+				for (int p = from; p < to; ++p) {
+					fillTiles(X, result, p);
+					if (tiles - 1 - p != p) {
+						fillTiles(X, result, tiles - 1 - p);
+					}
+				}
+			}
+		});
+		Parallel.forRange(n, threads, new Parallel.Range() {
+			@Override
+			public void run(int from, int to) {
+				for (int i = from; i < to; ++i) {
+					for (int j = 0; j < i; ++j) {
+						result[i][j] = result[j][i];
+					}
+				}
+			}
+		});
+		return result;
+	}
+
+	private static void fillTiles(double[][] X, double[][] result, int tile) {
+		int n = X.length;
+		int rowFrom = tile * TILE;
+		int rowTo = Math.min(n, rowFrom + TILE);
+		for (int colFrom = rowFrom; colFrom < n; colFrom += TILE) {
+			int colTo = Math.min(n, colFrom + TILE);
+			for (int i = rowFrom; i < rowTo; ++i) {
+				for (int j = Math.max(i, colFrom); j < colTo; ++j) {
+					result[i][j] = Distances.squaredEuclidean(X[i], X[j],
+							X[i].length);
+				}
+			}
+		}
+	}
+
+	private void fillUpper(int i) {
+		for (int j = i; j < X.length; ++j) {
+			gram[i][j] = K(i, j);
+		}
+	}
+
+	/**
+	 * Evaluates the kernel between two training rows without the cache.
+	 */
+	public double K(int i, int j) {
+		if (distances != null) {
+			return Math.exp(-distances[i][j] / sigmaSquared);
+		}
+		return Math.exp(-Distances.squaredEuclidean(X[i], X[j], X[i].length)
+				/ sigmaSquared);
+	}
+
+	/**
+	 * @return Number of rows the LRU holds, or 0 outside LRU mode
+	 */
+	public int cachedRows() {
+		return slots != null ? slots.length : 0;
+	}
+
+	/**
+	 * Returns row i of the Gram matrix, K(i, j) for every j. The returned
+	 * array must not be modified, and in LRU mode is only valid until the
+	 * next call.
+	 */
+	public double[] row(int i) {
+		if (gram != null) {
+			return gram[i];
+		}
+		if (distances != null) {
+			double[] d = distances[i];
+			for (int j = 0; j < buffer.length; ++j) {
+				buffer[j] = Math.exp(-d[j] / sigmaSquared);
+			}
+			evaluations += buffer.length;
+			return buffer;
+		}
+
+		int slot = slotOf[i];
+		if (slot < 0) {
+			if (used < slots.length) {
+				slot = used++;
+				slots[slot] = new double[X.length];
+			} else {
+				slot = tail;
+				slotOf[rowIn[slot]] = -1;
+				unlink(slot);
+			}
+			double[] row = slots[slot];
+			for (int j = 0; j < X.length; ++j) {
+				row[j] = K(i, j);
+			}
+			evaluations += X.length;
+			slotOf[i] = slot;
+			rowIn[slot] = i;
+		} else if (slot == head) {
+			return slots[slot];
+		} else {
+			unlink(slot);
+		}
+
+		// Move to the front
+		prev[slot] = -1;
+		next[slot] = head;
+		if (head >= 0) {
+			prev[head] = slot;
+		}
+		head = slot;
+		if (tail < 0) {
+			tail = slot;
+		}
+		return slots[slot];
+	}
+
+	private void unlink(int slot) {
+		if (prev[slot] >= 0) {
+			next[prev[slot]] = next[slot];
+		} else {
+			head = next[slot];
+		}
+		if (next[slot] >= 0) {
+			prev[next[slot]] = prev[slot];
+		} else {
+			tail = prev[slot];
+		}
+	}
+
+	/**
+	 * @return true if the whole Gram matrix is held in memory
+	 */
+	public boolean isFull() {
+		return gram != null;
+	}
+
+	/**
+	 * @return Number of kernel evaluations made so far
+	 */
+	public long evaluations() {
+		return evaluations;
+	}
+}
@@ -0,0 +1,133 @@
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Rows of doubles read in place from a file through memory-mapped windows,
+ * so they take no heap. The values are row-major and little-endian, as in
+ * the body of a binary dataset (see BinaryDataset) or a matrix in a model
+ * file (see ModelFile). A mapping stays valid after its file is closed, or
+ * replaced by a new file of the same name.
+ *
+ * Reads use absolute positions only, so any number of threads can read the
+ * same rows at once.
+ *
+ * @author AbstractOwl
+ */
+final class MappedRows {
+	// Bytes mapped per window at most
+	private static final long WINDOW = 1 << 30;
+	// Widest rows that fit in a window
+	static final int MAX_COLUMNS = (int) (WINDOW / 8);
+
+	private final int rows;
+	private final int columns;
+	// Each window holds 1 << shift rows
+	private final int shift;
+	private final DoubleBuffer[] windows;
+
+	/**
+	 * Maps rows stored at a position of a file.
+	 * @param channel Channel of the file
+	 * @param position Offset of the first value, in bytes
+	 * @param rows Number of rows
+	 * @param columns Values per row
+	 */
+	MappedRows(FileChannel channel, long position, int rows, int columns)
+			throws IOException {
+		if (rows < 0 || columns < 1 || columns > MAX_COLUMNS) {
+			throw new IllegalArgumentException("Cannot map " + rows + " x "
+					+ columns + " rows");
+		}
+		long stride = 8L * columns;
+		int shift = 0;
+		while (shift < 30 && stride << (shift + 1) <= WINDOW) {
+			++shift;
+		}
+		this.rows = rows;
+		this.columns = columns;
+		this.shift = shift;
+		this.windows = new DoubleBuffer[
+				(int) (((long) rows + (1L << shift) - 1) >> shift)];
+		for (int w = 0; w < windows.length; ++w) {
+			long first = (long) w << shift;
+			long count = Math.min(1L << shift, rows - first);
+			windows[w] = channel.map(FileChannel.MapMode.READ_ONLY,
+					position + first * stride, count * stride)
+					.order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer();
+		}
+	}
+
+	/**
+	 * Maps the rows of a binary dataset of doubles.
+	 * @param filename Path to the binary file
+	 * @return Its rows
+	 */
+	static MappedRows open(String filename) {
+		RandomAccessFile file = null;
+		try {
+			file = new RandomAccessFile(filename, "r");
+			FileChannel channel = file.getChannel();
+			BinaryDataset.Header header = BinaryDataset.header(channel,
+					filename);
+			if (header == null || header.dtype != BinaryDataset.FLOAT64) {
+				throw new IllegalArgumentException(filename
+						+ " is not a binary dataset of doubles");
+			}
+			if (header.rows > Integer.MAX_VALUE) {
+				throw new IllegalArgumentException("Too many rows in "
+						+ filename);
+			}
+			return new MappedRows(channel, BinaryDataset.HEADER,
+					(int) header.rows, header.columns);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		} finally {
+			try {
+				if (file != null) {
+					file.close();
+				}
+			} catch (IOException e) { /* I tried... */ }
+		}
+	}
+
+	/**
+	 * @return Number of rows
+	 */
+	public int rows() {
+		return rows;
+	}
+
+	/**
+	 * @return Values per row
+	 */
+	public int columns() {
+		return columns;
+	}
+
+	/**
+	 * Copies a row out.
+	 * @param row Index of the row
+	 * @param out Receives the columns() values of the row
+	 * @return out
+	 */
+	public double[] get(int row, double[] out) {
+		windows[row >>> shift].get((row & ((1 << shift) - 1)) * columns, out,
+				0, columns);
+		return out;
+	}
+
+	/**
+	 * Copies every row onto the heap.
+	 * @return The rows
+	 */
+	public double[][] toArray() {
+		double[][] result = new double[rows][];
+		for (int i = 0; i < rows; ++i) {
+			result[i] = get(i, new double[columns]);
+		}
+		return result;
+	}
+}
@@ -0,0 +1,443 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Files holding trained models. A model file is a header, "MLMD", the format
+ * version and the kind of model, followed by the model's fields in the
+ * order its class writes them. Everything is little-endian and every field
+ * takes a multiple of 8 bytes, so arrays of doubles stay aligned:
+ *
+ *   int, long, double   one 8 byte slot
+ *   array               long length, then the values, padded to 8 bytes
+ *   matrix              long rows, long columns, then the values row-major
+ *   string              an array of its ASCII bytes
+ *
+ * Files are read through memory-mapped windows and written to a temporary
+ * file that replaces the target only once it is complete, so a reader never
+ * sees half a model. Lengths are checked against the size of the file before
+ * anything is allocated, and a model whose contents do not hold together,
+ * truncated or with indices out of range, fails to load with an IOException.
+ *
+ * @author AbstractOwl
+ */
+final class ModelFile {
+	// "MLMD" read as a little-endian int
+	private static final int MAGIC = 0x444d4c4d;
+	private static final int VERSION = 1;
+	// Bytes mapped at a time when reading
+	private static final int WINDOW = 1 << 28;
+	// Bytes buffered before they are written out
+	private static final int BUFFER = 1 << 20;
+
+	private ModelFile() {
+	}
+
+	/**
+	 * Writes a model file.
+	 */
+	static final class Writer {
+		private final File target;
+		private final File temporary;
+		private final RandomAccessFile file;
+		private final ByteBuffer buffer;
+		// Bytes written out of the buffer so far
+		private long flushed;
+
+		/**
+		 * @param filename Path to the model file to write
+		 * @param kind Kind of model, checked when it is read back
+		 */
+		Writer(String filename, String kind) throws IOException {
+			this.target = new File(filename).getAbsoluteFile();
+			this.temporary = File.createTempFile(target.getName() + ".",
+					".tmp", target.getParentFile());
+			RandomAccessFile file = null;
+			try {
+				file = new RandomAccessFile(temporary, "rw");
+			} finally {
+				if (file == null) {
+					temporary.delete();
+				}
+			}
+			this.file = file;
+			boolean started = false;
+			try {
+				this.buffer = ByteBuffer.allocateDirect(BUFFER)
+						.order(ByteOrder.LITTLE_ENDIAN);
+				this.flushed = 0;
+				putInt(MAGIC);
+				putInt(VERSION);
+				putString(kind);
+				started = true;
+			} finally {
+				if (!started) {
+					abort();
+				}
+			}
+		}
+
+		private void require(int bytes) throws IOException {
+			if (buffer.remaining() < bytes) {
+				drain();
+			}
+		}
+
+		private void drain() throws IOException {
+			buffer.flip();
+			flushed += buffer.remaining();
+			FileChannel channel = file.getChannel();
+			while (buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+			buffer.clear();
+		}
+
+		private void pad() throws IOException {
+			while (((flushed + buffer.position()) & 7) != 0) {
+				require(1);
+				buffer.put((byte) 0);
+			}
+		}
+
+		void putInt(int value) throws IOException {
+			putLong(value);
+		}
+
+		void putLong(long value) throws IOException {
+			require(8);
+			buffer.putLong(value);
+		}
+
+		void putDouble(double value) throws IOException {
+			require(8);
+			buffer.putDouble(value);
+		}
+
+		void putString(String value) throws IOException {
+			putBytes(value.getBytes(StandardCharsets.US_ASCII));
+		}
+
+		void putBytes(byte[] values) throws IOException {
+			putLong(values.length);
+			for (int i = 0; i < values.length; ++i) {
+				require(1);
+				buffer.put(values[i]);
+			}
+			pad();
+		}
+
+		void putInts(int[] values) throws IOException {
+			putLong(values.length);
+			for (int i = 0; i < values.length; ++i) {
+				require(4);
+				buffer.putInt(values[i]);
+			}
+			pad();
+		}
+
+		void putFloats(float[] values) throws IOException {
+			putLong(values.length);
+			for (int i = 0; i < values.length; ++i) {
+				require(4);
+				buffer.putFloat(values[i]);
+			}
+			pad();
+		}
+
+		void putDoubles(double[] values) throws IOException {
+			putDoubles(values, 0, values.length);
+		}
+
+		/**
+		 * Writes values [from, to) of an array, read back as an array of
+		 * to - from values.
+		 */
+		void putDoubles(double[] values, int from, int to) throws IOException {
+			putLong(to - from);
+			for (int i = from; i < to; ++i) {
+				require(8);
+				buffer.putDouble(values[i]);
+			}
+		}
+
+		/**
+		 * @param rows Rows of equal length
+		 * @param columns Length of each row
+		 */
+		void putMatrix(double[][] rows, int columns) throws IOException {
+			putLong(rows.length);
+			putLong(columns);
+			for (double[] row : rows) {
+				for (int j = 0; j < columns; ++j) {
+					require(8);
+					buffer.putDouble(row[j]);
+				}
+			}
+		}
+
+		/**
+		 * Writes mapped rows, read back as a matrix.
+		 */
+		void putMatrix(MappedRows rows) throws IOException {
+			putLong(rows.rows());
+			putLong(rows.columns());
+			double[] row = new double[rows.columns()];
+			for (int i = 0; i < rows.rows(); ++i) {
+				rows.get(i, row);
+				for (int j = 0; j < row.length; ++j) {
+					require(8);
+					buffer.putDouble(row[j]);
+				}
+			}
+		}
+
+		/**
+		 * Finishes the file and moves it over the target.
+		 */
+		void close() throws IOException {
+			drain();
+			file.close();
+			Files.move(temporary.toPath(), target.toPath(),
+					StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		}
+
+		/**
+		 * Drops the file if it has not been closed.
+		 */
+		void abort() {
+			try {
+				file.close();
+			} catch (IOException e) { /* I tried... */ }
+			temporary.delete();
+		}
+	}
+
+	/**
+	 * Reads a model file.
+	 */
+	static final class Reader {
+		private final String filename;
+		private final RandomAccessFile file;
+		private final long size;
+		private ByteBuffer window;
+		private long windowStart;
+
+		/**
+		 * @param filename Path to the model file
+		 * @param kind Kind of model expected
+		 * @throws IllegalArgumentException if the file holds anything else
+		 */
+		Reader(String filename, String kind) throws IOException {
+			this.filename = filename;
+			this.file = new RandomAccessFile(filename, "r");
+			this.size = file.length();
+			this.window = ByteBuffer.allocate(0);
+			this.windowStart = 0;
+			try {
+				if (size < 16 || getLong() != MAGIC) {
+					throw new IllegalArgumentException(filename
+							+ " is not a model file");
+				}
+				int version = getInt();
+				if (version != VERSION) {
+					throw new IllegalArgumentException("Unsupported version "
+							+ version + " of " + filename);
+				}
+				String found = getString();
+				if (!found.equals(kind)) {
+					throw new IllegalArgumentException("Expected a " + kind
+							+ " model in " + filename + ", found " + found);
+				}
+			} catch (IOException e) {
+				close();
+				throw e;
+			} catch (RuntimeException e) {
+				close();
+				throw e;
+			}
+		}
+
+		/**
+		 * @param detail What is wrong with the model
+		 * @return Exception to throw for a model whose contents do not hold
+		 *         together, such as a truncated file or indices out of range
+		 */
+		IOException corrupt(String detail) {
+			return new IOException("Corrupt model in " + filename + ": "
+					+ detail);
+		}
+
+		/**
+		 * @return Bytes left to read
+		 */
+		private long remaining() {
+			return size - windowStart - window.position();
+		}
+
+		/**
+		 * Maps the next bytes of the file if the window does not hold them.
+		 */
+		private ByteBuffer require(long bytes) throws IOException {
+			if (window.remaining() < bytes) {
+				long position = windowStart + window.position();
+				if (position + bytes > size) {
+					throw corrupt("truncated");
+				}
+				window = file.getChannel().map(FileChannel.MapMode.READ_ONLY,
+						position, Math.min(size - position,
+								Math.max(bytes, WINDOW)));
+				window.order(ByteOrder.LITTLE_ENDIAN);
+				windowStart = position;
+			}
+			return window;
+		}
+
+		private void pad() throws IOException {
+			int skip = (int) (-(windowStart + window.position()) & 7);
+			if (skip > 0) {
+				require(skip);
+				window.position(window.position() + skip);
+			}
+		}
+
+		/**
+		 * Reads an array length, checking that the values fit in the rest of
+		 * the file.
+		 * @param width Bytes per value
+		 */
+		private int length(int width) throws IOException {
+			long length = getLong();
+			if (length < 0 || length > Integer.MAX_VALUE - 8) {
+				throw corrupt("array length " + length);
+			}
+			if (length > remaining() / width) {
+				throw corrupt("truncated");
+			}
+			return (int) length;
+		}
+
+		int getInt() throws IOException {
+			long value = getLong();
+			if ((int) value != value) {
+				throw corrupt("value " + value + " is not an int");
+			}
+			return (int) value;
+		}
+
+		long getLong() throws IOException {
+			return require(8).getLong();
+		}
+
+		double getDouble() throws IOException {
+			return require(8).getDouble();
+		}
+
+		String getString() throws IOException {
+			return new String(getBytes(), StandardCharsets.US_ASCII);
+		}
+
+		byte[] getBytes() throws IOException {
+			byte[] values = new byte[length(1)];
+			for (int from = 0; from < values.length; from += WINDOW) {
+				int count = Math.min(WINDOW, values.length - from);
+				require(count).get(values, from, count);
+			}
+			pad();
+			return values;
+		}
+
+		int[] getInts() throws IOException {
+			int[] values = new int[length(4)];
+			int step = WINDOW / 4;
+			for (int from = 0; from < values.length; from += step) {
+				int count = Math.min(step, values.length - from);
+				ByteBuffer bytes = require(4L * count);
+				bytes.asIntBuffer().get(values, from, count);
+				bytes.position(bytes.position() + 4 * count);
+			}
+			pad();
+			return values;
+		}
+
+		float[] getFloats() throws IOException {
+			float[] values = new float[length(4)];
+			int step = WINDOW / 4;
+			for (int from = 0; from < values.length; from += step) {
+				int count = Math.min(step, values.length - from);
+				ByteBuffer bytes = require(4L * count);
+				bytes.asFloatBuffer().get(values, from, count);
+				bytes.position(bytes.position() + 4 * count);
+			}
+			pad();
+			return values;
+		}
+
+		double[] getDoubles() throws IOException {
+			double[] values = new double[length(8)];
+			getDoubles(values, 0, values.length);
+			return values;
+		}
+
+		private void getDoubles(double[] values, int from, int to)
+				throws IOException {
+			int step = WINDOW / 8;
+			for (; from < to; from += step) {
+				int count = Math.min(step, to - from);
+				ByteBuffer bytes = require(8L * count);
+				bytes.asDoubleBuffer().get(values, from, count);
+				bytes.position(bytes.position() + 8 * count);
+			}
+		}
+
+		double[][] getMatrix() throws IOException {
+			int rows = length(8);
+			int columns = length(8);
+			checkMatrix(rows, columns);
+			double[][] values = new double[rows][columns];
+			for (double[] row : values) {
+				getDoubles(row, 0, columns);
+			}
+			return values;
+		}
+
+		/**
+		 * Reads a matrix in place: its rows are mapped from the file rather
+		 * than copied onto the heap.
+		 */
+		MappedRows mapMatrix() throws IOException {
+			int rows = length(8);
+			int columns = length(8);
+			checkMatrix(rows, columns);
+			if (columns < 1 || columns > MappedRows.MAX_COLUMNS) {
+				throw corrupt(rows + " x " + columns + " matrix");
+			}
+			long position = windowStart + window.position();
+			MappedRows values = new MappedRows(file.getChannel(), position,
+					rows, columns);
+			windowStart = position + 8L * rows * columns;
+			window = ByteBuffer.allocate(0);
+			return values;
+		}
+
+		private void checkMatrix(int rows, int columns) throws IOException {
+			if ((long) rows * columns > remaining() / 8) {
+				throw corrupt("truncated " + rows + " x " + columns
+						+ " matrix");
+			}
+		}
+
+		void close() {
+			try {
+				file.close();
+			} catch (IOException e) { /* I tried... */ }
+		}
+	}
+}
@@ -0,0 +1,266 @@
+import java.io.IOException;
+
+/**
+ * Streaming first and second moments of a set of rows: the count, the mean
+ * and the co-moment (scatter) matrix sum((x - mean)(x - mean)^T). Memory is
+ * O(d^2) regardless of the number of rows. Moments of disjoint sets of rows
+ * can be merged with Chan's pairwise update, so partial moments may be
+ * accumulated independently, for instance one per thread, and combined
+ * afterwards.
+ *
+ * Rows are buffered into blocks. Each block is shifted by the running mean,
+ * which keeps the sums free of cancellation and folds the centering into the
+ * accumulation, and its products are added into the upper triangle of the
+ * scatter matrix tile by tile, so each tile of the matrix stays in cache
+ * while the whole block streams past it.
+ *
+ * @author AbstractOwl
+ */
+class Moments {
+	// Rows buffered per block
+	private static final int BLOCK = 256;
+	// Edge of the square tiles the scatter matrix is updated in
+	private static final int TILE = 64;
+	// Largest array the VM allocates
+	private static final long MAX_ARRAY = Integer.MAX_VALUE - 8;
+
+	private final int dims;
+	private long count;
+	private final double[] mean;
+	// Upper triangle (j <= k) of the co-moment matrix, row-major d x d
+	private final double[] comoment;
+	private final double[] delta;
+
+	// Rows waiting to be folded in, row-major
+	private double[] pending;
+	private int pendingRows;
+	// Shifted block, column-major
+	private double[] columns;
+
+	/**
+	 * @param dims Number of columns per row
+	 * @throws IllegalArgumentException if the d x d co-moment matrix does not
+	 *         fit in an array, above 46340 columns
+	 */
+	public Moments(int dims) {
+		if ((long) dims * dims > MAX_ARRAY) {
+			throw new IllegalArgumentException("Too many columns for a " + dims
+					+ " x " + dims + " moment matrix");
+		}
+		this.dims = dims;
+		this.count = 0;
+		this.mean = new double[dims];
+		this.comoment = new double[dims * dims];
+		this.delta = new double[dims];
+		this.pending = null;
+		this.pendingRows = 0;
+		this.columns = null;
+	}
+
+	/**
+	 * Computes the moments of rows held in memory, block by block.
+	 * @param data Rows, row-major
+	 * @param rows Number of rows
+	 * @param dims Number of columns per row
+	 * @return Moments of the rows
+	 */
+	public static Moments of(double[] data, int rows, int dims) {
+		Moments moments = new Moments(dims);
+		for (int start = 0; start < rows; start += BLOCK) {
+			moments.addBlock(data, start * dims, Math.min(BLOCK, rows - start));
+		}
+		return moments;
+	}
+
+	public int dims() {
+		return dims;
+	}
+
+	public long count() {
+		return count + pendingRows;
+	}
+
+	/**
+	 * Folds a row into the moments.
+	 * @param row Row of at least dims values
+	 */
+	public void add(double[] row) {
+		if (pending == null) {
+			pending = new double[BLOCK * dims];
+		}
+		System.arraycopy(row, 0, pending, pendingRows * dims, dims);
+		if (++pendingRows == BLOCK) {
+			flush();
+		}
+	}
+
+	private void flush() {
+		if (pendingRows > 0) {
+			int rows = pendingRows;
+			pendingRows = 0;
+			addBlock(pending, 0, rows);
+		}
+	}
+
+	/**
+	 * Folds a block of rows in with a shifted, tiled rank-k update. With
+	 * y = x - s for the shift s (the running mean, or the first row of the
+	 * first block), n_b rows and ybar their mean y, the merged moments are
+	 * mean = s + ybar * n_b / n and C += sum(y y^T) - ybar ybar^T * n_b^2 / n.
+	 * The rows are read from block at offset and left untouched.
+	 */
+	private void addBlock(double[] block, int offset, int rows) {
+		// Shift the rows, transposing them so each column is contiguous
+		double[] shift = delta;
+		System.arraycopy(count > 0 ? mean : block, count > 0 ? 0 : offset,
+				shift, 0, dims);
+		if (columns == null) {
+			columns = new double[BLOCK * dims];
+		}
+		double[] sums = new double[dims];
+		for (int r = 0; r < rows; ++r) {
+			int row = offset + r * dims;
+			for (int j = 0; j < dims; ++j) {
+				double y = block[row + j] - shift[j];
+				columns[j * rows + r] = y;
+				sums[j] += y;
+			}
+		}
+
+		// C += sum(y y^T), upper triangle, one tile at a time, each entry a
+		// dot product of two shifted columns
+		for (int jt = 0; jt < dims; jt += TILE) {
+			int jEnd = Math.min(dims, jt + TILE);
+			for (int kt = jt; kt < dims; kt += TILE) {
+				int kEnd = Math.min(dims, kt + TILE);
+				for (int j = jt; j < jEnd; ++j) {
+					int out = j * dims;
+					for (int k = Math.max(j, kt); k < kEnd; ++k) {
+						comoment[out + k] += Distances.dot(columns, j * rows,
+								columns, k * rows, rows);
+					}
+				}
+			}
+		}
+
+		long total = count + rows;
+		double correction = (double) rows * rows / total;
+		for (int j = 0; j < dims; ++j) {
+			sums[j] /= rows;
+		}
+		for (int j = 0; j < dims; ++j) {
+			double dj = sums[j] * correction;
+			int out = j * dims;
+			for (int k = j; k < dims; ++k) {
+				comoment[out + k] -= dj * sums[k];
+			}
+		}
+		double share = (double) rows / total;
+		for (int j = 0; j < dims; ++j) {
+			mean[j] = shift[j] + sums[j] * share;
+		}
+		count = total;
+	}
+
+	/**
+	 * Merges the moments of another, disjoint set of rows into these.
+	 * @param other Moments with the same number of columns
+	 */
+	public void merge(Moments other) {
+		if (other.dims != dims) {
+			throw new IllegalArgumentException("Expected " + dims
+					+ " columns, found " + other.dims);
+		}
+		flush();
+		other.flush();
+		if (other.count == 0) {
+			return;
+		}
+		long total = count + other.count;
+		double weight = (double) count * other.count / total;
+		double share  = (double) other.count / total;
+		for (int j = 0; j < dims; ++j) {
+			delta[j] = other.mean[j] - mean[j];
+		}
+		// C = C_a + C_b + delta * delta^T * n_a * n_b / n
+		for (int j = 0; j < dims; ++j) {
+			double dj = delta[j] * weight;
+			int offset = j * dims;
+			for (int k = j; k < dims; ++k) {
+				comoment[offset + k] += other.comoment[offset + k] + dj * delta[k];
+			}
+		}
+		for (int j = 0; j < dims; ++j) {
+			mean[j] += delta[j] * share;
+		}
+		count = total;
+	}
+
+	/**
+	 * Writes the moments to a model file.
+	 * @param out Model file to write to
+	 */
+	void write(ModelFile.Writer out) throws IOException {
+		flush();
+		out.putInt(dims);
+		out.putLong(count);
+		out.putDoubles(mean);
+		out.putDoubles(comoment);
+	}
+
+	/**
+	 * Reads moments written by write.
+	 * @param in Model file to read from
+	 * @return The moments
+	 */
+	static Moments read(ModelFile.Reader in) throws IOException {
+		int dims = in.getInt();
+		long count = in.getLong();
+		double[] mean = in.getDoubles();
+		double[] comoment = in.getDoubles();
+		if (dims < 0 || count < 0 || mean.length != dims
+				|| comoment.length != (long) dims * dims) {
+			throw in.corrupt("moments of " + dims + " columns");
+		}
+		Moments moments = new Moments(dims);
+		moments.count = count;
+		System.arraycopy(mean, 0, moments.mean, 0, mean.length);
+		System.arraycopy(comoment, 0, moments.comoment, 0, comoment.length);
+		return moments;
+	}
+
+	/**
+	 * @return Copy of the mean of the rows
+	 */
+	public double[] mean() {
+		flush();
+		return mean.clone();
+	}
+
+	/**
+	 * @return The full symmetric scatter matrix, sum((x - mean)(x - mean)^T)
+	 */
+	public double[][] scatter() {
+		flush();
+		double[][] result = new double[dims][dims];
+		for (int j = 0; j < dims; ++j) {
+			for (int k = j; k < dims; ++k) {
+				result[j][k] = result[k][j] = comoment[j * dims + k];
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @return The population covariance matrix, scatter / count
+	 */
+	public double[][] covariance() {
+		double[][] result = scatter();
+		for (int j = 0; j < dims; ++j) {
+			for (int k = 0; k < dims; ++k) {
+				result[j][k] /= count;
+			}
+		}
+		return result;
+	}
+}
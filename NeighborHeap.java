@@ -0,0 +1,147 @@
+/**
+ * A bounded max-heap of (distance, row index) pairs used to select the k
+ * nearest neighbors of a query point. The root is always the farthest of the
+ * neighbors collected so far, so a candidate only has to beat the root to get
+ * in. Ties on distance are broken by row index so that selection is
+ * deterministic.
+ *
+ * The heap is backed by primitive arrays and can be reused between queries
+ * with {@link #clear()}, so selection does not allocate per row.
+ *
+ * @author AbstractOwl
+ */
+class NeighborHeap {
+	private final double[] distances;
+	private final int[] indices;
+	private int size;
+
+	/**
+	 * @param capacity Maximum number of neighbors to keep (k)
+	 */
+	public NeighborHeap(int capacity) {
+		if (capacity < 1) {
+			throw new IllegalArgumentException("Capacity must be positive");
+		}
+		distances = new double[capacity];
+		indices   = new int[capacity];
+		size      = 0;
+	}
+
+	/**
+	 * Empties the heap so it can be reused for another query.
+	 */
+	public void clear() {
+		size = 0;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public int capacity() {
+		return distances.length;
+	}
+
+	public boolean isFull() {
+		return size == distances.length;
+	}
+
+	/**
+	 * @return The distance a candidate has to beat to enter the heap, or
+	 *         positive infinity if the heap is not full yet
+	 */
+	public double bound() {
+		return isFull() ? distances[0] : Double.POSITIVE_INFINITY;
+	}
+
+	/**
+	 * Offers a candidate neighbor to the heap.
+	 * @param distance Distance from the query to the candidate
+	 * @param index Row index of the candidate
+	 * @return true if the candidate was kept
+	 */
+	public boolean offer(double distance, int index) {
+		if (size < distances.length) {
+			distances[size] = distance;
+			indices[size]   = index;
+			siftUp(size++);
+			return true;
+		}
+		if (!farther(distances[0], indices[0], distance, index)) {
+			return false;
+		}
+		distances[0] = distance;
+		indices[0]   = index;
+		siftDown(0, size);
+		return true;
+	}
+
+	/**
+	 * Sorts the collected neighbors in place, nearest first. After this call
+	 * the heap ordering is gone: read the results with {@link #distance(int)}
+	 * and {@link #index(int)}, then {@link #clear()} before reusing.
+	 */
+	public void sort() {
+		for (int end = size - 1; end > 0; --end) {
+			swap(0, end);
+			siftDown(0, end);
+		}
+	}
+
+	public double distance(int i) {
+		return distances[i];
+	}
+
+	public int index(int i) {
+		return indices[i];
+	}
+
+	/**
+	 * @return true if (d0, i0) orders after (d1, i1)
+	 */
+	private static boolean farther(double d0, int i0, double d1, int i1) {
+		return d0 > d1 || (d0 == d1 && i0 > i1);
+	}
+
+	private void siftUp(int i) {
+		while (i > 0) {
+			int parent = (i - 1) >>> 1;
+			if (!farther(distances[i], indices[i],
+					distances[parent], indices[parent])) {
+				break;
+			}
+			swap(i, parent);
+			i = parent;
+		}
+	}
+
+	private void siftDown(int i, int end) {
+		while (true) {
+			int left    = 2 * i + 1;
+			int largest = i;
+			if (left < end && farther(distances[left], indices[left],
+					distances[largest], indices[largest])) {
+				largest = left;
+			}
+			int right = left + 1;
+			if (right < end && farther(distances[right], indices[right],
+					distances[largest], indices[largest])) {
+				largest = right;
+			}
+			if (largest == i) {
+				return;
+			}
+			swap(i, largest);
+			i = largest;
+		}
+	}
+
+	private void swap(int a, int b) {
+		double d = distances[a];
+		distances[a] = distances[b];
+		distances[b] = d;
+		int t = indices[a];
+		indices[a] = indices[b];
+		indices[b] = t;
+	}
+}
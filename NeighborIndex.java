@@ -0,0 +1,24 @@
+import java.io.IOException;
+
+/**
+ * A spatial index over a set of training rows that can answer exact
+ * k-nearest neighbor queries.
+ *
+ * @author AbstractOwl
+ */
+interface NeighborIndex {
+	/**
+	 * Offers the training rows nearest to a point to a heap. Rows are offered
+	 * with their squared L2 distance; the heap is neither cleared nor sorted.
+	 * @param point Point to find neighbors of
+	 * @param heap Heap to collect neighbors into
+	 */
+	void search(double[] point, NeighborHeap heap);
+
+	/**
+	 * Writes the built index to a model file. Training rows are not written;
+	 * the index is read back over the same rows.
+	 * @param out Model file to write to
+	 */
+	void write(ModelFile.Writer out) throws IOException;
+}
@@ -0,0 +1,126 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Splits loops over a range of indices across a pool of threads.
+ *
+ * @author AbstractOwl
+ */
+final class Parallel {
+	// Ranges are split into this many chunks per thread to even out load
+	private static final int CHUNKS_PER_THREAD = 4;
+
+	/**
+	 * A task over a contiguous range of indices.
+	 */
+	interface Range {
+		/**
+		 * @param from First index, inclusive
+		 * @param to Last index, exclusive
+		 */
+		void run(int from, int to);
+	}
+
+	private Parallel() {
+	}
+
+	/**
+	 * @return Number of processors available to the JVM
+	 */
+	public static int defaultThreads() {
+		return Runtime.getRuntime().availableProcessors();
+	}
+
+	/**
+	 * Creates a pool for a series of forRange calls, so that loops run
+	 * repeatedly, such as once per iteration of a solver, do not start
+	 * threads each time. Shut it down with shutdown once the series is done.
+	 * @param threads Thread count
+	 * @return The pool, or null if threads is 1 and loops run on the caller
+	 */
+	public static ExecutorService newPool(int threads) {
+		return threads <= 1 ? null : Executors.newFixedThreadPool(threads);
+	}
+
+	/**
+	 * @param pool Pool from newPool, or null
+	 */
+	public static void shutdown(ExecutorService pool) {
+		if (pool != null) {
+			pool.shutdownNow();
+		}
+	}
+
+	/**
+	 * Runs a task over [0, n), split into contiguous chunks run on a fixed
+	 * pool of threads. Returns once every chunk has finished. Each chunk should
+	 * only write state it owns, such as its own slots of a result array.
+	 * @param n Size of the range
+	 * @param threads Thread count; 1 runs the task on the calling thread
+	 * @param task Task to run on each chunk
+	 */
+	public static void forRange(int n, int threads, final Range task) {
+		int chunks = (int) Math.min(n, (long) threads * CHUNKS_PER_THREAD);
+		if (threads <= 1 || chunks <= 1) {
+			task.run(0, n);
+			return;
+		}
+
+		ExecutorService pool = newPool(threads);
+		try {
+			forRange(pool, n, threads, task);
+		} finally {
+			shutdown(pool);
+		}
+	}
+
+	/**
+	 * Runs a task over [0, n) like forRange(n, threads, task), on a pool the
+	 * caller owns.
+	 * @param pool Pool from newPool; null runs the task on the calling thread
+	 * @param n Size of the range
+	 * @param threads Thread count of the pool
+	 * @param task Task to run on each chunk
+	 */
+	public static void forRange(ExecutorService pool, int n, int threads,
+			final Range task) {
+		int chunks = (int) Math.min(n, (long) threads * CHUNKS_PER_THREAD);
+		if (pool == null || chunks <= 1) {
+			task.run(0, n);
+			return;
+		}
+
+		List<Future<Void>> futures = new ArrayList<Future<Void>>(chunks);
+		try {
+			for (int c = 0; c < chunks; ++c) {
+				final int from = (int) ((long) n * c / chunks);
+				final int to   = (int) ((long) n * (c + 1) / chunks);
+				futures.add(pool.submit(new Callable<Void>() {
+					@Override
+					public Void call() {
+						task.run(from, to);
+						return null;
+					}
+				}));
+			}
+			for (Future<Void> future : futures) {
+				future.get();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		} catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		} finally {
+			// Leave no chunk of a failed loop running on the shared pool
+			for (Future<Void> future : futures) {
+				future.cancel(true);
+			}
+		}
+	}
+}
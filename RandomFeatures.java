@@ -0,0 +1,105 @@
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Random Fourier features for the Gaussian kernel
+ * K(x, y) = exp(-|x - y|^2 / sigma^2). Maps a point to
+ * z(x) = sqrt(2 / D) cos(Wx + b), with the rows of W drawn from
+ * N(0, 2 / sigma^2) and b uniform on [0, 2 pi), so that z(x).z(y)
+ * approximates K(x, y) with error shrinking as 1 / sqrt(D).
+ *
+ * @author AbstractOwl
+ */
+class RandomFeatures {
+	private final int dims;
+	private final int features;
+	private final double[] weights;
+	private final double[] offsets;
+	private final double scale;
+
+	/**
+	 * @param dims Dimensionality of the input points
+	 * @param features Number of random features (D)
+	 * @param sigma Kernel width
+	 * @param seed Seed for drawing W and b
+	 */
+	public RandomFeatures(int dims, int features, double sigma, long seed) {
+		if (features < 1) {
+			throw new IllegalArgumentException("Feature count must be positive");
+		}
+		this.dims = dims;
+		this.features = features;
+		this.weights = new double[features * dims];
+		this.offsets = new double[features];
+		this.scale = Math.sqrt(2.0 / features);
+
+		Random random = new Random(seed);
+		double deviation = Math.sqrt(2.0) / sigma;
+		for (int i = 0; i < weights.length; ++i) {
+			weights[i] = random.nextGaussian() * deviation;
+		}
+		for (int i = 0; i < features; ++i) {
+			offsets[i] = random.nextDouble() * 2.0 * Math.PI;
+		}
+	}
+
+	private RandomFeatures(int dims, double[] weights, double[] offsets) {
+		this.dims = dims;
+		this.features = offsets.length;
+		this.weights = weights;
+		this.offsets = offsets;
+		this.scale = Math.sqrt(2.0 / features);
+	}
+
+	/**
+	 * Writes the drawn features to a model file.
+	 * @param out Model file to write to
+	 */
+	void write(ModelFile.Writer out) throws IOException {
+		out.putInt(dims);
+		out.putDoubles(weights);
+		out.putDoubles(offsets);
+	}
+
+	/**
+	 * Reads features written by write.
+	 * @param in Model file to read from
+	 * @return The features
+	 */
+	static RandomFeatures read(ModelFile.Reader in) throws IOException {
+		int dims = in.getInt();
+		double[] weights = in.getDoubles();
+		double[] offsets = in.getDoubles();
+		if (dims < 1 || offsets.length < 1
+				|| weights.length != (long) offsets.length * dims) {
+			throw in.corrupt("random features");
+		}
+		return new RandomFeatures(dims, weights, offsets);
+	}
+
+	/**
+	 * @return Dimensionality of the input points
+	 */
+	public int dims() {
+		return dims;
+	}
+
+	/**
+	 * @return Number of random features (D)
+	 */
+	public int features() {
+		return features;
+	}
+
+	/**
+	 * Maps a point into feature space.
+	 * @param point Point to map
+	 * @param out Receives the D features
+	 */
+	public void map(double[] point, double[] out) {
+		for (int i = 0; i < features; ++i) {
+			out[i] = scale * Math.cos(
+					Distances.dot(weights, i * dims, point, 0, dims) + offsets[i]);
+		}
+	}
+}
@@ -0,0 +1,167 @@
+import java.io.IOException;
+
+/**
+ * Recursive least squares fit of y = w.x + T. The intercept is folded in by
+ * augmenting each row with a constant 1, so the state is theta = [w, T] and
+ * P = (Z^T Z)^-1 over the augmented rows Z. Each new row is a rank-1
+ * Sherman-Morrison update of P and theta in O(d^2), rather than a refit.
+ *
+ * A forgetting factor lambda in (0, 1] weights a row seen t updates ago by
+ * lambda^t, so the fit tracks drifting data; 1 weights every row equally
+ * and gives the same answer as a batch fit over all the rows.
+ *
+ * @author AbstractOwl
+ */
+class RecursiveLeastSquares {
+	private final int dims;
+	private final int size;
+	private final double lambda;
+	// Row-major (d + 1) x (d + 1)
+	private final double[] P;
+	private final double[] theta;
+	private final double[] z;
+	private final double[] Pz;
+	private long updates;
+
+	/**
+	 * Starts from the batch least squares fit of a set of rows.
+	 * @param moments Moments of rows of d features followed by the target
+	 * @param lambda Forgetting factor in (0, 1]
+	 * @throws IllegalArgumentException if the rows do not determine a fit
+	 */
+	public RecursiveLeastSquares(Moments moments, double lambda) {
+		if (!(lambda > 0.0 && lambda <= 1.0)) {
+			throw new IllegalArgumentException(
+					"Forgetting factor must be in (0, 1]");
+		}
+		this.dims = moments.dims() - 1;
+		this.size = dims + 1;
+		this.lambda = lambda;
+		this.theta = new double[size];
+		this.z = new double[size];
+		this.Pz = new double[size];
+		this.updates = 0;
+
+		// Augmented normal equations from the centered moments:
+		// Z^T Z = [S_xx + n m m^T, n m; n m^T, n], Z^T y = [S_xy + n m m_y, n m_y]
+		double n = moments.count();
+		double[] mean = moments.mean();
+		double[][] scatter = moments.scatter();
+		double[][] A = new double[size][size];
+		double[] b = new double[size];
+		for (int i = 0; i < dims; ++i) {
+			for (int j = 0; j < dims; ++j) {
+				A[i][j] = scatter[i][j] + n * mean[i] * mean[j];
+			}
+			A[i][dims] = A[dims][i] = n * mean[i];
+			b[i] = scatter[i][dims] + n * mean[i] * mean[dims];
+		}
+		A[dims][dims] = n;
+		b[dims] = n * mean[dims];
+
+		Cholesky cholesky = new Cholesky(A);
+		this.P = cholesky.inverse();
+		double[] solution = cholesky.solve(b);
+		System.arraycopy(solution, 0, theta, 0, size);
+	}
+
+	private RecursiveLeastSquares(int dims, double lambda, double[] P,
+			double[] theta, long updates) {
+		this.dims = dims;
+		this.size = dims + 1;
+		this.lambda = lambda;
+		this.P = P;
+		this.theta = theta;
+		this.z = new double[size];
+		this.Pz = new double[size];
+		this.updates = updates;
+	}
+
+	/**
+	 * Writes the state of the fit to a model file.
+	 * @param out Model file to write to
+	 */
+	void write(ModelFile.Writer out) throws IOException {
+		out.putInt(dims);
+		out.putDouble(lambda);
+		out.putDoubles(P);
+		out.putDoubles(theta);
+		out.putLong(updates);
+	}
+
+	/**
+	 * Reads a fit written by write, to carry on updating it.
+	 * @param in Model file to read from
+	 * @return The fit
+	 */
+	static RecursiveLeastSquares read(ModelFile.Reader in) throws IOException {
+		int dims = in.getInt();
+		double lambda = in.getDouble();
+		double[] P = in.getDoubles();
+		double[] theta = in.getDoubles();
+		long updates = in.getLong();
+		int size = dims + 1;
+		if (dims < 0 || P.length != (long) size * size
+				|| theta.length != size) {
+			throw in.corrupt("fit of " + dims + " features");
+		}
+		return new RecursiveLeastSquares(dims, lambda, P, theta, updates);
+	}
+
+	/**
+	 * Folds a new row into the fit.
+	 * @param row d features followed by the target
+	 * @throws IllegalArgumentException if the row has any other length
+	 */
+	public void update(double[] row) {
+		if (row.length != size) {
+			throw new IllegalArgumentException("Expected " + size
+					+ " parameters, found " + row.length);
+		}
+		System.arraycopy(row, 0, z, 0, dims);
+		z[dims] = 1.0;
+
+		// Pz = P z, gain k = Pz / (lambda + z^T P z)
+		for (int i = 0; i < size; ++i) {
+			Pz[i] = Distances.dot(P, i * size, z, 0, size);
+		}
+		double denominator = lambda + Distances.dot(z, Pz, size);
+		double error = row[dims] - Distances.dot(theta, z, size);
+
+		for (int i = 0; i < size; ++i) {
+			theta[i] += Pz[i] * error / denominator;
+		}
+		// P = (P - Pz Pz^T / denominator) / lambda, kept exactly symmetric
+		for (int i = 0; i < size; ++i) {
+			double ki = Pz[i] / denominator;
+			for (int j = i; j < size; ++j) {
+				double value = (P[i * size + j] - ki * Pz[j]) / lambda;
+				P[i * size + j] = P[j * size + i] = value;
+			}
+		}
+		++updates;
+	}
+
+	/**
+	 * @return Copy of the current weights w
+	 */
+	public double[] weights() {
+		double[] w = new double[dims];
+		System.arraycopy(theta, 0, w, 0, dims);
+		return w;
+	}
+
+	/**
+	 * @return The current intercept T
+	 */
+	public double intercept() {
+		return theta[dims];
+	}
+
+	/**
+	 * @return Number of rows folded in since the batch fit
+	 */
+	public long updates() {
+		return updates;
+	}
+}
@@ -0,0 +1,177 @@
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShape;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Distance kernels built on the JDK Vector API. Compile and run with
+ * {@code --add-modules jdk.incubator.vector}; {@link Distances} loads this
+ * class reflectively and falls back to scalar loops when the module is
+ * missing.
+ *
+ * @author AbstractOwl
+ */
+final class SimdDistances implements Distances.Kernel {
+	private static final VectorSpecies<Double> SPECIES =
+			DoubleVector.SPECIES_PREFERRED;
+	private static final VectorSpecies<Float> FLOATS =
+			FloatVector.SPECIES_PREFERRED;
+	// Bytes are widened to floats lane for lane; 64 bits is the narrowest shape
+	private static final VectorSpecies<Byte> BYTES = VectorSpecies.of(
+			byte.class, VectorShape.forBitSize(
+					Math.max(64, FLOATS.length() * Byte.SIZE)));
+	private static final Distances.Kernel SCALAR = new Distances.Scalar();
+
+	@Override
+	public double squaredEuclidean(double[] a, int aOffset, double[] b,
+			int bOffset, int length) {
+		int bound = SPECIES.loopBound(length);
+		if (bound == 0) { // Too short to be worth a vector
+			return SCALAR.squaredEuclidean(a, aOffset, b, bOffset, length);
+		}
+
+		DoubleVector accum = DoubleVector.zero(SPECIES);
+		int i = 0;
+		for (; i < bound; i += SPECIES.length()) {
+			DoubleVector d = DoubleVector.fromArray(SPECIES, a, aOffset + i)
+					.sub(DoubleVector.fromArray(SPECIES, b, bOffset + i));
+			accum = d.fma(d, accum);
+		}
+		double sum = accum.reduceLanes(VectorOperators.ADD);
+		for (; i < length; ++i) {
+			double d = a[aOffset + i] - b[bOffset + i];
+			sum += d * d;
+		}
+		return sum;
+	}
+
+	@Override
+	public void squaredEuclidean(double[] query, double[][] rows, int from,
+			int to, int length, double[] out) {
+		int bound = SPECIES.loopBound(length);
+		if (bound == 0) {
+			SCALAR.squaredEuclidean(query, rows, from, to, length, out);
+			return;
+		}
+
+		int r = from;
+		for (; r + Distances.ROWS_PER_PASS <= to; r += Distances.ROWS_PER_PASS) {
+			double[] r0 = rows[r];
+			double[] r1 = rows[r + 1];
+			double[] r2 = rows[r + 2];
+			double[] r3 = rows[r + 3];
+			DoubleVector accum0 = DoubleVector.zero(SPECIES);
+			DoubleVector accum1 = DoubleVector.zero(SPECIES);
+			DoubleVector accum2 = DoubleVector.zero(SPECIES);
+			DoubleVector accum3 = DoubleVector.zero(SPECIES);
+			int i = 0;
+			for (; i < bound; i += SPECIES.length()) {
+				DoubleVector q = DoubleVector.fromArray(SPECIES, query, i);
+				DoubleVector d0 = q.sub(DoubleVector.fromArray(SPECIES, r0, i));
+				DoubleVector d1 = q.sub(DoubleVector.fromArray(SPECIES, r1, i));
+				DoubleVector d2 = q.sub(DoubleVector.fromArray(SPECIES, r2, i));
+				DoubleVector d3 = q.sub(DoubleVector.fromArray(SPECIES, r3, i));
+				accum0 = d0.fma(d0, accum0);
+				accum1 = d1.fma(d1, accum1);
+				accum2 = d2.fma(d2, accum2);
+				accum3 = d3.fma(d3, accum3);
+			}
+			double sum0 = accum0.reduceLanes(VectorOperators.ADD);
+			double sum1 = accum1.reduceLanes(VectorOperators.ADD);
+			double sum2 = accum2.reduceLanes(VectorOperators.ADD);
+			double sum3 = accum3.reduceLanes(VectorOperators.ADD);
+			for (; i < length; ++i) {
+				double q = query[i];
+				double d0 = q - r0[i];
+				double d1 = q - r1[i];
+				double d2 = q - r2[i];
+				double d3 = q - r3[i];
+				sum0 += d0 * d0;
+				sum1 += d1 * d1;
+				sum2 += d2 * d2;
+				sum3 += d3 * d3;
+			}
+			out[r - from]     = sum0;
+			out[r - from + 1] = sum1;
+			out[r - from + 2] = sum2;
+			out[r - from + 3] = sum3;
+		}
+		for (; r < to; ++r) {
+			out[r - from] = squaredEuclidean(query, 0, rows[r], 0, length);
+		}
+	}
+
+	@Override
+	public double dot(double[] a, int aOffset, double[] b, int bOffset,
+			int length) {
+		int bound = SPECIES.loopBound(length);
+		if (bound == 0) {
+			return SCALAR.dot(a, aOffset, b, bOffset, length);
+		}
+
+		DoubleVector accum = DoubleVector.zero(SPECIES);
+		int i = 0;
+		for (; i < bound; i += SPECIES.length()) {
+			accum = DoubleVector.fromArray(SPECIES, a, aOffset + i)
+					.fma(DoubleVector.fromArray(SPECIES, b, bOffset + i), accum);
+		}
+		double sum = accum.reduceLanes(VectorOperators.ADD);
+		for (; i < length; ++i) {
+			sum += a[aOffset + i] * b[bOffset + i];
+		}
+		return sum;
+	}
+
+	@Override
+	public double squaredEuclidean(float[] a, int aOffset, float[] b,
+			int bOffset, int length) {
+		int bound = FLOATS.loopBound(length);
+		if (bound == 0) {
+			return SCALAR.squaredEuclidean(a, aOffset, b, bOffset, length);
+		}
+
+		FloatVector accum = FloatVector.zero(FLOATS);
+		int i = 0;
+		for (; i < bound; i += FLOATS.length()) {
+			FloatVector d = FloatVector.fromArray(FLOATS, a, aOffset + i)
+					.sub(FloatVector.fromArray(FLOATS, b, bOffset + i));
+			accum = d.fma(d, accum);
+		}
+		float sum = accum.reduceLanes(VectorOperators.ADD);
+		for (; i < length; ++i) {
+			float d = a[aOffset + i] - b[bOffset + i];
+			sum += d * d;
+		}
+		return sum;
+	}
+
+	@Override
+	public double weightedSquaredEuclidean(float[] query, float[] weights,
+			byte[] codes, int offset, int length) {
+		// Each step loads BYTES.length() codes but only widens the first
+		// FLOATS.length() of them
+		int reach = BYTES.length();
+		if (length < reach) {
+			return SCALAR.weightedSquaredEuclidean(query, weights, codes, offset,
+					length);
+		}
+
+		FloatVector accum = FloatVector.zero(FLOATS);
+		int i = 0;
+		for (; i + reach <= length; i += FLOATS.length()) {
+			FloatVector code = (FloatVector) ByteVector
+					.fromArray(BYTES, codes, offset + i)
+					.convertShape(VectorOperators.B2F, FLOATS, 0);
+			FloatVector d = FloatVector.fromArray(FLOATS, query, i).sub(code);
+			accum = d.mul(d).fma(FloatVector.fromArray(FLOATS, weights, i), accum);
+		}
+		float sum = accum.reduceLanes(VectorOperators.ADD);
+		for (; i < length; ++i) {
+			float d = query[i] - codes[offset + i];
+			sum += weights[i] * d * d;
+		}
+		return sum;
+	}
+}
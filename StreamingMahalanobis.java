@@ -0,0 +1,184 @@
+/**
+ * Mahalanobis distance scoring against a model that moves with a stream of
+ * points. The mean and inverse covariance are kept over either a sliding
+ * window of the last W points or an exponentially decayed history, and each
+ * new point updates them with Sherman-Morrison rank-1 updates, O(d^2) per
+ * point rather than a refit.
+ *
+ * In window mode the inverse drifts as updates and downdates accumulate
+ * rounding error, so it is recomputed exactly from the window every W
+ * points, which adds O(d^2 + d^3 / W) per point.
+ *
+ * @author AbstractOwl
+ */
+class StreamingMahalanobis {
+	private final int dims;
+	private final double[] mean;
+	// Window mode: inverse of the scatter matrix, Cov^-1 = W * Q.
+	// Decay mode: inverse covariance. Row-major d x d.
+	private double[] Q;
+	private final double scale;
+
+	// Decay mode: weight of the newest point, 1 - lambda
+	private final double alpha;
+
+	// Window mode: ring buffer of the last W points, row-major
+	private final double[] window;
+	private final int capacity;
+	private int oldest;
+	private int sinceRefresh;
+
+	private final double[] delta;
+	private final double[] Qd;
+
+	private StreamingMahalanobis(int dims, double[] window, double alpha) {
+		this.dims = dims;
+		this.mean = new double[dims];
+		this.window = window;
+		this.capacity = window == null ? 0 : window.length / dims;
+		this.scale = window == null ? 1.0 : capacity;
+		this.alpha = alpha;
+		this.oldest = 0;
+		this.sinceRefresh = 0;
+		this.delta = new double[dims];
+		this.Qd = new double[dims];
+	}
+
+	/**
+	 * Creates a scorer over an exponentially decayed history, where a point
+	 * seen t points ago has weight proportional to lambda^t.
+	 * @param mean Starting mean
+	 * @param covariance Starting covariance
+	 * @param lambda Decay per point, in (0, 1)
+	 */
+	public static StreamingMahalanobis decayed(double[] mean,
+			double[][] covariance, double lambda) {
+		if (!(lambda > 0.0 && lambda < 1.0)) {
+			throw new IllegalArgumentException("Decay must be in (0, 1)");
+		}
+		StreamingMahalanobis model = new StreamingMahalanobis(mean.length, null,
+				1.0 - lambda);
+		System.arraycopy(mean, 0, model.mean, 0, mean.length);
+		model.Q = new Cholesky(covariance).inverse();
+		return model;
+	}
+
+	/**
+	 * Creates a scorer over a sliding window of the last W points.
+	 * @param rows The starting window, oldest first; W must exceed d so the
+	 *             covariance is invertible
+	 */
+	public static StreamingMahalanobis window(double[][] rows) {
+		int dims = rows[0].length;
+		if (rows.length <= dims) {
+			throw new IllegalArgumentException("Window of " + rows.length
+					+ " points is too small for " + dims + " dimensions");
+		}
+		double[] window = new double[rows.length * dims];
+		for (int i = 0; i < rows.length; ++i) {
+			System.arraycopy(rows[i], 0, window, i * dims, dims);
+		}
+		StreamingMahalanobis model = new StreamingMahalanobis(dims, window, 0.0);
+		model.refresh();
+		return model;
+	}
+
+	/**
+	 * @return Dimensionality of the points
+	 */
+	public int dims() {
+		return dims;
+	}
+
+	/**
+	 * Computes the Mahalanobis distance of a point from the current mean,
+	 * without updating the model.
+	 * @param point Point to score
+	 * @return Distance from the mean
+	 */
+	public double score(double[] point) {
+		for (int i = 0; i < dims; ++i) {
+			delta[i] = point[i] - mean[i];
+		}
+		double squared = 0.0;
+		for (int i = 0; i < dims; ++i) {
+			squared += delta[i] * Distances.dot(Q, i * dims, delta, 0, dims);
+		}
+		return Math.sqrt(Math.max(0.0, scale * squared));
+	}
+
+	/**
+	 * Folds a point into the model, evicting the oldest point of a window.
+	 * @param point New point
+	 */
+	public void update(double[] point) {
+		if (window == null) {
+			// mean += alpha * delta,
+			// Cov = (1 - alpha) (Cov + alpha delta delta^T)
+			for (int i = 0; i < dims; ++i) {
+				delta[i] = point[i] - mean[i];
+				mean[i] += alpha * delta[i];
+			}
+			if (!rankOne(delta, alpha, 1.0 / (1.0 - alpha))) {
+				throw new IllegalStateException(
+						"Covariance is no longer positive definite");
+			}
+			return;
+		}
+
+		// Add the point: S += (W / (W + 1)) delta delta^T
+		int W = capacity;
+		for (int i = 0; i < dims; ++i) {
+			delta[i] = point[i] - mean[i];
+			mean[i] += delta[i] / (W + 1);
+		}
+		boolean stable = rankOne(delta, (double) W / (W + 1), 1.0);
+
+		// Evict the oldest: S -= ((W + 1) / W) u u^T
+		int offset = oldest * dims;
+		for (int i = 0; i < dims; ++i) {
+			delta[i] = window[offset + i] - mean[i];
+			mean[i] -= delta[i] / W;
+		}
+		stable &= rankOne(delta, -(double) (W + 1) / W, 1.0);
+
+		System.arraycopy(point, 0, window, offset, dims);
+		oldest = (oldest + 1) % W;
+		if (!stable || ++sinceRefresh >= W) {
+			refresh();
+		}
+	}
+
+	/**
+	 * Q = factor * (Q - c Q u u^T Q / (1 + c u^T Q u)), the Sherman-Morrison
+	 * form of (Q^-1 + c u u^T)^-1, kept exactly symmetric.
+	 * @return false if the update broke down numerically
+	 */
+	private boolean rankOne(double[] u, double c, double factor) {
+		for (int i = 0; i < dims; ++i) {
+			Qd[i] = Distances.dot(Q, i * dims, u, 0, dims);
+		}
+		double denominator = 1.0 + c * Distances.dot(u, Qd, dims);
+		if (!(denominator > 1e-12)) {
+			return false;
+		}
+		for (int i = 0; i < dims; ++i) {
+			double gain = c * Qd[i] / denominator;
+			for (int j = i; j < dims; ++j) {
+				double value = factor * (Q[i * dims + j] - gain * Qd[j]);
+				Q[i * dims + j] = Q[j * dims + i] = value;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Recomputes the mean and inverse scatter exactly from the window.
+	 */
+	private void refresh() {
+		Moments moments = Moments.of(window, capacity, dims);
+		System.arraycopy(moments.mean(), 0, mean, 0, dims);
+		Q = new Cholesky(moments.scatter()).inverse();
+		sinceRefresh = 0;
+	}
+}
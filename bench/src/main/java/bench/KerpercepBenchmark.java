@@ -0,0 +1,131 @@
+package bench;
+
+import java.io.File;
+import java.io.PrintStream;
+import java.lang.invoke.MethodHandle;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Kernel perceptron training and scoring, with the exact kernel and with
+ * random Fourier features. The two classes overlap, so training never
+ * converges early.
+ *
+ * @author AbstractOwl
+ */
+@BenchmarkMode(Mode.AverageTime)
+@State(Scope.Benchmark)
+@Fork(value = 1, jvmArgsAppend = "--add-modules=jdk.incubator.vector")
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class KerpercepBenchmark {
+	private static final int BATCH = 256;
+	private static final int TRAINED_EPOCHS = 10;
+	private static final long SEED = 1;
+	// Class centers close enough that the classes overlap
+	private static final double SPREAD = 0.25;
+
+	/** Rows per class */
+	@Param({"1000", "4000"})
+	public int rows;
+
+	@Param({"16"})
+	public int dims;
+
+	/** Random features D, or 0 for the exact kernel */
+	@Param({"0", "512"})
+	public int features;
+
+	private File directory;
+	private String pos;
+	private String neg;
+	private double sigma;
+	private Object model;
+	private MethodHandle train;
+	private MethodHandle setMaxEpochs;
+	private MethodHandle score;
+	private double[][] batch;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Throwable {
+		directory = Tools.temporaryDirectory();
+		pos = new File(directory, "pos").getPath();
+		neg = new File(directory, "neg").getPath();
+		SyntheticData positive = new SyntheticData(SyntheticData.Kind.CLASS,
+				dims, 2, 0, SEED, SPREAD);
+		SyntheticData negative = new SyntheticData(SyntheticData.Kind.CLASS,
+				dims, 2, 1, SEED, SPREAD);
+		positive.write(pos, rows);
+		negative.write(neg, rows);
+		// Points drawn after the training rows, from the same classes
+		batch = new double[BATCH][];
+		System.arraycopy(positive.rows(BATCH / 2), 0, batch, 0, BATCH / 2);
+		System.arraycopy(negative.rows(BATCH / 2), 0, batch, BATCH / 2,
+				BATCH / 2);
+		// Typical distance between two points of a class
+		sigma = Math.sqrt(2.0 * dims);
+
+		model = Tools.create("kerpercep", new Class<?>[0]);
+		Tools.method("kerpercep", "setThreads", int.class).invoke(model, 1);
+		Tools.method("kerpercep", "setRandomFeatures", int.class, long.class)
+				.invoke(model, features, SEED);
+		train = Tools.method("kerpercep", "train", double.class,
+				String.class, String.class);
+		setMaxEpochs = Tools.method("kerpercep", "setMaxEpochs", int.class);
+		score = Tools.method("kerpercep", "score", double[][].class);
+
+		// A fully trained model for scoring; also writes the binary caches
+		setMaxEpochs.invoke(model, TRAINED_EPOCHS);
+		train();
+		setMaxEpochs.invoke(model, 1);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		Tools.delete(directory);
+	}
+
+	private void train() throws Throwable {
+		PrintStream out = Tools.silence();
+		try {
+			train.invoke(model, sigma, pos, neg);
+		} finally {
+			System.setOut(out);
+		}
+	}
+
+	/**
+	 * One training epoch, including loading the cached rows and, for the
+	 * exact kernel, filling the kernel cache.
+	 */
+	@Benchmark
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	public Object epoch() throws Throwable {
+		train();
+		return model;
+	}
+
+	/**
+	 * Decision value of one point, scored in batches.
+	 */
+	@Benchmark
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	@OperationsPerInvocation(BATCH)
+	public double[] score() throws Throwable {
+		return (double[]) score.invoke(model, batch);
+	}
+}
@@ -0,0 +1,98 @@
+package bench;
+
+import java.io.File;
+import java.io.PrintStream;
+import java.lang.invoke.MethodHandle;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Latency of a single knn query against each kind of index. Queries cycle
+ * through a fixed set of points drawn from the same classes as the training
+ * rows.
+ *
+ * @author AbstractOwl
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Fork(value = 1, jvmArgsAppend = "--add-modules=jdk.incubator.vector")
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class KnnBenchmark {
+	private static final int QUERIES = 1024;
+	private static final int CLASSES = 4;
+	private static final long SEED = 1;
+
+	@Param({"10000", "100000"})
+	public int rows;
+
+	@Param({"16"})
+	public int dims;
+
+	@Param({"5"})
+	public int k;
+
+	@Param({"brute", "kdtree", "balltree", "hnsw", "float32", "int8"})
+	public String index;
+
+	private File directory;
+	private Object model;
+	private MethodHandle classify;
+	private double[][] queries;
+	private int next;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Throwable {
+		directory = Tools.temporaryDirectory();
+		String train = new File(directory, "train").getPath();
+		new SyntheticData(SyntheticData.Kind.LABELED, dims, CLASSES, 0, SEED)
+				.write(train, rows);
+		// The classes of the training rows, drawn from a different stream
+		queries = new double[QUERIES][];
+		for (int c = 0, i = 0; c < CLASSES; ++c) {
+			double[][] drawn = new SyntheticData(SyntheticData.Kind.CLASS,
+					dims, CLASSES, c, SEED).rows(QUERIES / CLASSES);
+			for (double[] point : drawn) {
+				queries[i++] = point;
+			}
+		}
+
+		model = Tools.create("knn",
+				new Class<?>[] { int.class, Tools.type("knn$Index") },
+				k, Tools.constant("knn$Index", index));
+		Tools.method("knn", "setThreads", int.class).invoke(model, 1);
+		PrintStream out = Tools.silence();
+		try {
+			Tools.method("knn", "train", String.class).invoke(model, train);
+		} finally {
+			System.setOut(out);
+		}
+		classify = Tools.method("knn", "classify", double[].class);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		Tools.delete(directory);
+	}
+
+	@Benchmark
+	public int classify() throws Throwable {
+		double[] point = queries[next];
+		next = (next + 1) & (QUERIES - 1);
+		return (int) classify.invoke(model, point);
+	}
+}
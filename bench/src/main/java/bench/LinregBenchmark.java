@@ -0,0 +1,87 @@
+package bench;
+
+import java.io.File;
+import java.io.PrintStream;
+import java.lang.invoke.MethodHandle;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Time for linreg to train on a dataset, from its binary copy, with each
+ * solver.
+ *
+ * @author AbstractOwl
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Fork(value = 1, jvmArgsAppend = "--add-modules=jdk.incubator.vector")
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class LinregBenchmark {
+	private static final long SEED = 1;
+
+	@Param({"10000", "100000"})
+	public int rows;
+
+	@Param({"16", "128"})
+	public int dims;
+
+	@Param({"closed", "cg"})
+	public String solver;
+
+	@Param({"1"})
+	public int threads;
+
+	private File directory;
+	private String train;
+	private Object model;
+	private MethodHandle trainHandle;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Throwable {
+		directory = Tools.temporaryDirectory();
+		train = new File(directory, "train").getPath();
+		new SyntheticData(SyntheticData.Kind.REGRESSION, dims, 1, 0, SEED)
+				.write(train, rows);
+
+		model = Tools.create("linreg", new Class<?>[0]);
+		Tools.method("linreg", "setThreads", int.class).invoke(model, threads);
+		Tools.method("linreg", "setSolver", Tools.type("linreg$Solver"))
+				.invoke(model, Tools.constant("linreg$Solver", solver));
+		trainHandle = Tools.method("linreg", "train", String.class);
+		// Writes the binary copy, so every measured run reads it
+		train();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		Tools.delete(directory);
+	}
+
+	@Benchmark
+	public Object train() throws Throwable {
+		PrintStream out = Tools.silence();
+		PrintStream err = Tools.silenceErrors();
+		try {
+			trainHandle.invoke(model, train);
+		} finally {
+			System.setOut(out);
+			System.setErr(err);
+		}
+		return model;
+	}
+}
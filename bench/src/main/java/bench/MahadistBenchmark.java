@@ -0,0 +1,80 @@
+package bench;
+
+import java.io.File;
+import java.io.PrintStream;
+import java.lang.invoke.MethodHandle;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Mahalanobis distance of a single point from a trained distribution.
+ *
+ * @author AbstractOwl
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Benchmark)
+@Fork(value = 1, jvmArgsAppend = "--add-modules=jdk.incubator.vector")
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class MahadistBenchmark {
+	private static final int POINTS = 1024;
+	private static final long SEED = 1;
+
+	@Param({"10000"})
+	public int rows;
+
+	@Param({"8", "64", "256"})
+	public int dims;
+
+	private File directory;
+	private Object model;
+	private MethodHandle mahalanobis;
+	private double[][] points;
+	private int next;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Throwable {
+		directory = Tools.temporaryDirectory();
+		String train = new File(directory, "train").getPath();
+		SyntheticData data = new SyntheticData(SyntheticData.Kind.POINTS,
+				dims, 1, 0, SEED);
+		data.write(train, rows);
+		points = data.rows(POINTS);
+
+		model = Tools.create("mahadist", new Class<?>[0]);
+		Tools.method("mahadist", "setThreads", int.class).invoke(model, 1);
+		PrintStream out = Tools.silence();
+		try {
+			Tools.method("mahadist", "train", String.class).invoke(model, train);
+		} finally {
+			System.setOut(out);
+		}
+		mahalanobis = Tools.method("mahadist", "mahalanobis", double[].class);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		Tools.delete(directory);
+	}
+
+	@Benchmark
+	public double distance() throws Throwable {
+		double[] point = points[next];
+		next = (next + 1) & (POINTS - 1);
+		return (double) mahalanobis.invoke(model, point);
+	}
+}
@@ -0,0 +1,86 @@
+package bench;
+
+import java.io.File;
+import java.lang.invoke.MethodHandle;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Loading a dataset into memory with the loader every tool shares, from the
+ * text file with caching off, and from binary copies in double and single
+ * precision.
+ *
+ * @author AbstractOwl
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Fork(value = 1, jvmArgsAppend = "--add-modules=jdk.incubator.vector")
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class ParseBenchmark {
+	private static final long SEED = 1;
+
+	@Param({"100000"})
+	public int rows;
+
+	@Param({"16"})
+	public int dims;
+
+	/** text, float64 or float32 */
+	@Param({"text", "float64", "float32"})
+	public String format;
+
+	@Param({"1"})
+	public int threads;
+
+	private File directory;
+	private String filename;
+	private MethodHandle load;
+	private MethodHandle setCaching;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Throwable {
+		directory = Tools.temporaryDirectory();
+		String text = new File(directory, "data").getPath();
+		new SyntheticData(SyntheticData.Kind.POINTS, dims, 1, 0, SEED)
+				.write(text, rows);
+
+		setCaching = Tools.method("ChunkedScan", "setCaching", boolean.class);
+		load = Tools.method("ChunkedScan", "load", String.class, int.class);
+		if (format.equals("text")) {
+			filename = text;
+			setCaching.invoke(false);
+		} else {
+			int dtype = format.equals("float32") ? 4 : 8;
+			filename = text + "." + format;
+			Tools.method("ChunkedScan", "convert", String.class, String.class,
+					int.class, int.class, int.class)
+					.invoke(text, filename, threads, 0, dtype);
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws Throwable {
+		setCaching.invoke(true);
+		Tools.delete(directory);
+	}
+
+	@Benchmark
+	public double[][] load() throws Throwable {
+		return (double[][]) load.invoke(filename, threads);
+	}
+}
@@ -0,0 +1,241 @@
+package bench;
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Random;
+
+/**
+ * Seeded synthetic datasets in the "<M> <N>" text format the tools read.
+ * The same kind, seed and dimensions always give the same rows, so every
+ * run of a benchmark sees the same data.
+ *
+ * Points are Gaussian around a center, with a common factor mixed into every
+ * dimension so the covariance is not diagonal. The kinds of dataset are:
+ *
+ *   points      points around the origin (mahadist)
+ *   regression  d features and a target, a fixed linear function of the
+ *               features plus noise (linreg)
+ *   labeled     points around one of several class centers, each followed
+ *               by its class label (knn training sets)
+ *   class       points around the center of one class (knn testing sets,
+ *               kerpercep positive and negative sets)
+ *
+ * @author AbstractOwl
+ */
+public final class SyntheticData {
+	/**
+	 * Kinds of dataset.
+	 */
+	public enum Kind {
+		POINTS,
+		REGRESSION,
+		LABELED,
+		CLASS
+	}
+
+	// Default standard deviation of the class centers around the origin
+	public static final double SPREAD = 2.0;
+	// Standard deviation of the noise on regression targets
+	private static final double NOISE = 0.1;
+	private static final double INTERCEPT = 1.0;
+	// Digits written after the decimal point
+	private static final int DECIMALS = 6;
+	private static final double SCALE = 1e6;
+
+	private final Kind kind;
+	private final int dims;
+	private final int classes;
+	private final int label;
+	private final double[][] centers;
+	private final double[] loadings;
+	private final double[] weights;
+	private final Random random;
+
+	/**
+	 * @param kind Kind of dataset
+	 * @param dims Number of features d
+	 * @param classes Number of classes, for LABELED and CLASS
+	 * @param label Class to draw from, for CLASS
+	 * @param seed Seed; the centers, loadings and weights depend on it alone
+	 */
+	public SyntheticData(Kind kind, int dims, int classes, int label,
+			long seed) {
+		this(kind, dims, classes, label, seed, SPREAD);
+	}
+
+	/**
+	 * @param kind Kind of dataset
+	 * @param dims Number of features d
+	 * @param classes Number of classes, for LABELED and CLASS
+	 * @param label Class to draw from, for CLASS
+	 * @param seed Seed; the centers, loadings and weights depend on it alone
+	 * @param spread Standard deviation of the class centers; points have
+	 *        unit deviation around them, so small values make classes overlap
+	 */
+	public SyntheticData(Kind kind, int dims, int classes, int label,
+			long seed, double spread) {
+		if (dims < 1 || classes < 1 || label < 0 || label >= classes
+				|| !(spread >= 0)) {
+			throw new IllegalArgumentException("Invalid dataset parameters");
+		}
+		this.kind = kind;
+		this.dims = dims;
+		this.classes = classes;
+		this.label = label;
+
+		Random model = new Random(seed);
+		centers = new double[classes][dims];
+		for (int c = 0; c < classes; ++c) {
+			for (int j = 0; j < dims; ++j) {
+				centers[c][j] = model.nextGaussian() * spread;
+			}
+		}
+		loadings = new double[dims];
+		weights = new double[dims];
+		for (int j = 0; j < dims; ++j) {
+			loadings[j] = model.nextDouble() * 2.0 - 1.0;
+			weights[j] = model.nextGaussian();
+		}
+		random = new Random(seed * 31 + kind.ordinal() * 7 + label);
+	}
+
+	/**
+	 * @return Values per row, including a label or target
+	 */
+	public int columns() {
+		return kind == Kind.REGRESSION || kind == Kind.LABELED
+				? dims + 1 : dims;
+	}
+
+	/**
+	 * @return N of the "<M> <N>" header, which does not count a label
+	 */
+	public int headerColumns() {
+		return kind == Kind.LABELED ? dims : columns();
+	}
+
+	/**
+	 * Draws the next row.
+	 * @param row Receives columns() values
+	 */
+	public void next(double[] row) {
+		int c = kind == Kind.LABELED ? random.nextInt(classes)
+				: kind == Kind.CLASS ? label : -1;
+		double common = random.nextGaussian();
+		for (int j = 0; j < dims; ++j) {
+			row[j] = random.nextGaussian() + loadings[j] * common
+					+ (c >= 0 ? centers[c][j] : 0.0);
+		}
+		if (kind == Kind.REGRESSION) {
+			double y = INTERCEPT + random.nextGaussian() * NOISE;
+			for (int j = 0; j < dims; ++j) {
+				y += weights[j] * row[j];
+			}
+			row[dims] = y;
+		} else if (kind == Kind.LABELED) {
+			row[dims] = c;
+		}
+	}
+
+	/**
+	 * Draws rows into memory.
+	 * @param rows Number of rows
+	 * @return The rows
+	 */
+	public double[][] rows(int rows) {
+		double[][] result = new double[rows][columns()];
+		for (int i = 0; i < rows; ++i) {
+			next(result[i]);
+		}
+		return result;
+	}
+
+	/**
+	 * Draws rows into a data file, values rounded to DECIMALS digits.
+	 * @param filename Path to the file to write
+	 * @param rows Number of rows M
+	 */
+	public void write(String filename, long rows) throws IOException {
+		Writer out = new BufferedWriter(new FileWriter(filename), 1 << 16);
+		try {
+			StringBuilder sb = new StringBuilder();
+			sb.append(rows).append(' ').append(headerColumns()).append('\n');
+			double[] row = new double[columns()];
+			for (long i = 0; i < rows; ++i) {
+				next(row);
+				for (int j = 0; j < row.length; ++j) {
+					if (j != 0) sb.append(' ');
+					if (kind == Kind.LABELED && j == dims) {
+						sb.append((int) row[j]);
+					} else {
+						appendFixed(sb, row[j]);
+					}
+				}
+				sb.append('\n');
+				out.append(sb);
+				sb.setLength(0);
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	private static void appendFixed(StringBuilder sb, double value) {
+		long scaled = Math.round(Math.abs(value) * SCALE);
+		if (value < 0 && scaled != 0) {
+			sb.append('-');
+		}
+		sb.append(scaled / (long) SCALE).append('.');
+		String fraction = Long.toString(scaled % (long) SCALE);
+		for (int i = fraction.length(); i < DECIMALS; ++i) {
+			sb.append('0');
+		}
+		sb.append(fraction);
+	}
+
+	/**
+	 * Print usage information.
+	 */
+	private static void usage() {
+		throw new IllegalArgumentException(
+				"java bench.SyntheticData [-seed s] [-classes n] [-class i] "
+				+ "[-spread s] points|regression|labeled|class "
+				+ "<rows> <dims> <file>");
+	}
+
+	public static void main(String args[]) throws IOException {
+		long seed = 1;
+		int classes = 2;
+		int label = 0;
+		double spread = SPREAD;
+		int arg = 0;
+		while (arg < args.length && args[arg].startsWith("-")) {
+			if (args[arg].equals("-seed") && arg + 1 < args.length) {
+				seed = Long.parseLong(args[arg + 1], 10);
+				arg += 2;
+			} else if (args[arg].equals("-classes") && arg + 1 < args.length) {
+				classes = Integer.parseInt(args[arg + 1], 10);
+				arg += 2;
+			} else if (args[arg].equals("-class") && arg + 1 < args.length) {
+				label = Integer.parseInt(args[arg + 1], 10);
+				arg += 2;
+			} else if (args[arg].equals("-spread") && arg + 1 < args.length) {
+				spread = Double.parseDouble(args[arg + 1]);
+				arg += 2;
+			} else {
+				usage();
+			}
+		}
+		if (args.length - arg != 4) {
+			usage();
+		}
+
+		Kind kind = Kind.valueOf(args[arg].toUpperCase());
+		long rows = Long.parseLong(args[arg + 1], 10);
+		int dims = Integer.parseInt(args[arg + 2], 10);
+		new SyntheticData(kind, dims, classes, label, seed, spread)
+				.write(args[arg + 3], rows);
+	}
+}
@@ -0,0 +1,130 @@
+package bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.nio.file.Files;
+
+/**
+ * Access to the tools from the benchmarks. The tools live in the default
+ * package, which cannot be imported, so their methods are looked up by name
+ * once, during setup, and called through method handles.
+ *
+ * @author AbstractOwl
+ */
+final class Tools {
+	private Tools() {
+	}
+
+	/**
+	 * @param name Binary name of a class, e.g. "knn$Index"
+	 * @return The class
+	 */
+	static Class<?> type(String name) {
+		try {
+			return Class.forName(name);
+		} catch (ClassNotFoundException e) {
+			throw new IllegalStateException("Tool class " + name
+					+ " is not on the classpath", e);
+		}
+	}
+
+	/**
+	 * Looks up a method, including package-private ones.
+	 * @param owner Binary name of the declaring class
+	 * @param name Method name
+	 * @param parameters Parameter types
+	 * @return Handle taking the receiver first unless the method is static
+	 */
+	static MethodHandle method(String owner, String name,
+			Class<?>... parameters) {
+		try {
+			Method method = type(owner).getDeclaredMethod(name, parameters);
+			method.setAccessible(true);
+			return MethodHandles.lookup().unreflect(method);
+		} catch (ReflectiveOperationException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Creates a tool.
+	 * @param owner Binary name of the class
+	 * @param parameters Constructor parameter types
+	 * @param args Constructor arguments
+	 * @return The new instance
+	 */
+	static Object create(String owner, Class<?>[] parameters, Object... args) {
+		try {
+			Constructor<?> constructor =
+					type(owner).getDeclaredConstructor(parameters);
+			constructor.setAccessible(true);
+			return constructor.newInstance(args);
+		} catch (ReflectiveOperationException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * @param type Binary name of an enum
+	 * @param name Constant name, in any case
+	 * @return The constant
+	 */
+	static Object constant(String type, String name) {
+		for (Object value : type(type).getEnumConstants()) {
+			if (((Enum<?>) value).name().equalsIgnoreCase(name)) {
+				return value;
+			}
+		}
+		throw new IllegalArgumentException("No " + name + " in " + type);
+	}
+
+	/**
+	 * Sends standard output nowhere, for tools that report as they train.
+	 * @return The previous standard output, to restore afterwards
+	 */
+	static PrintStream silence() {
+		PrintStream out = System.out;
+		System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+		return out;
+	}
+
+	/**
+	 * Sends standard error nowhere, for tools that report their progress.
+	 * @return The previous standard error, to restore afterwards
+	 */
+	static PrintStream silenceErrors() {
+		PrintStream err = System.err;
+		System.setErr(new PrintStream(OutputStream.nullOutputStream()));
+		return err;
+	}
+
+	/**
+	 * @return A new empty directory for generated data files
+	 */
+	static File temporaryDirectory() throws IOException {
+		return Files.createTempDirectory("ml-bench").toFile();
+	}
+
+	/**
+	 * Deletes a directory created by temporaryDirectory and its files.
+	 * @param directory Directory to delete, or null
+	 */
+	static void delete(File directory) {
+		if (directory == null) {
+			return;
+		}
+		File[] files = directory.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				file.delete();
+			}
+		}
+		directory.delete();
+	}
+}
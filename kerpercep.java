@@ -1,119 +1,162 @@
-import java.io.BufferedReader;
-import java.io.FileReader;
 import java.io.IOException;
 
-import org.la4j.matrix.Matrix;
-import org.la4j.matrix.dense.Basic2DMatrix;
-import org.la4j.vector.Vector;
-import org.la4j.vector.functor.VectorAccumulator;
-
 /**
  * Radial basis function (Gaussian) kernel perceptron.
  * @author AbstractOwl
  */
 public class kerpercep {
+	/**
+	 * Policies for choosing which support vector to drop when a budgeted
+	 * model is full.
+	 */
+	public enum Removal {
+		/** Drop the support vector that was added first */
+		OLDEST,
+		/** Drop the support vector with the smallest alpha, oldest first */
+		SMALLEST
+	}
+	
+	// Epoch cap for the approximate modes, which need not converge
+	private static final int DEFAULT_APPROXIMATE_EPOCHS = 100;
+	
 	private double sigma;
 	private int[] alpha;
-	private Matrix X;
+	private double[][] X;
 	private int posEntries;
+	private double[] centroid;
+	// Support vectors: rows with a nonzero alpha, stored contiguously
+	private int features;
+	private int svCount;
+	private double[] svRows;
+	private double[] svCoef;
+	private double[] svNorm;
+	// Random Fourier feature mode: linear weights in feature space
+	private int randomFeatures;
+	private long seed;
+	private int maxEpochs;
+	private RandomFeatures rff;
+	private double[] rffWeights;
+	// Budgeted mode: cap on the number of support vectors
+	private int budget;
+	private Removal removal;
+	private long cacheBudget;
+	private int threads;
+	private boolean incremental;
 	public kerpercep() {
 		alpha = null;
 		X = null;
+		cacheBudget = Runtime.getRuntime().maxMemory() / 4;
+		threads = Parallel.defaultThreads();
+		incremental = true;
+		randomFeatures = 0;
+		seed = 0L;
+		maxEpochs = 0;
+		budget = 0;
+		removal = Removal.SMALLEST;
 	}
 	
 	/**
-	 * Parses a dataset.
-	 * @param filename Path to the data file
-	 * @return A 2D double array constructed from parsed data
+	 * Caps the number of support vectors so that scoring cost stays bounded.
+	 * When a mistake would add a support vector beyond the cap, one is
+	 * dropped according to the removal policy and its contribution is taken
+	 * back out of the model. Ignored in random feature mode.
+	 * @param maxSupportVectors Cap B, or 0 for no cap
+	 * @param removal Which support vector to drop when the model is full
 	 */
-	private static double[][] parse(String filename) {
-		double[][] result;
-		BufferedReader reader = null;
-		try {
-			reader = new BufferedReader(new FileReader(filename));
-			
-			// Read Header
-			String[] header = reader.readLine().trim().split("\\s+");
-			if (header.length != 2) {
-				reader.close();
-				throw new IllegalArgumentException("Expected first line of file "
-						+ filename + " to be <M> <N>");
-			}
-			
-			// Parse file
-			int M = Integer.parseInt(header[0], 10);
-			int N = Integer.parseInt(header[1], 10);
-			result = new double[M][N];
-			
-			for (int i = 0; i < M; ++i) {
-				String[] line = reader.readLine().trim().split("\\s+");
-				
-				if (N != line.length) {
-					reader.close();
-					throw new IllegalArgumentException("Expected " + N
-							+ " parameters, found " + line.length);
-				}
-				
-				for (int j = 0; j < N; ++j) {
-					result[i][j] = Double.parseDouble(line[j]);
-				}
-			}
-		} catch (IOException e) {
-			throw new RuntimeException(e);
-		} finally {
-			try {
-				reader.close();
-			} catch (IOException e) { /* I tried... */ }
+	public void setBudget(int maxSupportVectors, Removal removal) {
+		if (maxSupportVectors < 0) {
+			throw new IllegalArgumentException("Budget must not be negative");
 		}
-		
-		return result;
+		this.budget = maxSupportVectors;
+		this.removal = removal;
 	}
-
+	
 	/**
-	 * Computes the L2 distance between 2 vectors.
-	 * @param x1 Vector 1
-	 * @param x2 Vector 2
-	 * @return double distance between vectors 
+	 * Switches training to an approximation of the kernel by random Fourier
+	 * features: points are mapped into D features and a linear perceptron is
+	 * trained on them, so an epoch costs O(n D) rather than O(n^2) and
+	 * scoring a point costs O(D) kernel-free operations after the mapping.
+	 * @param features Number of random features D, or 0 for the exact kernel
+	 * @param seed Seed for drawing the features
 	 */
-	private static double euclidDistance(Vector x1, Vector x2) {
-		Vector v = x1.subtract(x2);
-		return v.fold(new VectorAccumulator() {
-			double accumulator = 0.0;
-			@Override
-			public double accumulate() {
-				return Math.sqrt(accumulator);
-			}
-			@Override
-			public void update(int arg0, double arg1) {
-				accumulator += arg1 * arg1;
-			}
-		});
+	public void setRandomFeatures(int features, long seed) {
+		if (features < 0) {
+			throw new IllegalArgumentException("Feature count must not be negative");
+		}
+		this.randomFeatures = features;
+		this.seed = seed;
+	}
+	
+	/**
+	 * Caps the number of training epochs. Exact training otherwise runs until
+	 * every row is classified correctly, which never happens on data that is
+	 * not separable. The approximate modes, random features and budgeted
+	 * training, are capped at DEFAULT_APPROXIMATE_EPOCHS by default.
+	 * @param epochs Maximum epochs, or 0 for the default: until converged,
+	 *        or DEFAULT_APPROXIMATE_EPOCHS in the approximate modes
+	 */
+	public void setMaxEpochs(int epochs) {
+		if (epochs < 0) {
+			throw new IllegalArgumentException("Epoch count must not be negative");
+		}
+		this.maxEpochs = epochs;
 	}
 	
 	/**
-	 * Computes the Gaussian radial basis function.
-	 * @param x1 Vector 1
-	 * @param x2 Vector 2
-	 * @return Radial basis kernel value
+	 * Chooses how decision values are computed during training.
+	 * @param incremental If true (the default), keep a running decision value
+	 *        per row and update it on each mistake; if false, recompute each
+	 *        row's sum over the support vectors on every epoch
 	 */
-	private double K(Vector x1, Vector x2) {
-		return Math.exp(-Math.pow(euclidDistance(x1, x2), 2) / Math.pow(sigma, 2));
+	public void setIncremental(boolean incremental) {
+		this.incremental = incremental;
 	}
 	
 	/**
-	 * Trains the kernel perceptron based on the training dataset.
-	 * @param sigma Sigma value to use
+	 * Sets the memory available for caching kernel values during training.
+	 * If the whole Gram matrix fits it is computed once up front; otherwise
+	 * the most recently used kernel rows are kept.
+	 * @param bytes Cache size in bytes
+	 */
+	public void setCacheBudget(long bytes) {
+		if (bytes < 0) {
+			throw new IllegalArgumentException("Cache budget must not be negative");
+		}
+		this.cacheBudget = bytes;
+	}
+	
+	/**
+	 * Sets the number of threads used to compute kernel values.
+	 * @param threads Thread count; 1 computes on the calling thread
+	 */
+	public void setThreads(int threads) {
+		if (threads < 1) {
+			throw new IllegalArgumentException("Thread count must be positive");
+		}
+		this.threads = threads;
+	}
+	
+	/**
+	 * Parses a dataset.
+	 * @param filename Path to the data file
+	 * @return A 2D double array constructed from parsed data
+	 */
+	private double[][] parse(String filename) {
+		return ChunkedScan.load(filename, threads);
+	}
+
+	/**
+	 * Loads the training datasets into X, positive rows first, and centers
+	 * them on their centroid.
 	 * @param posTrain Path to positive dataset
 	 * @param negTrain Path to negative dataset
 	 */
-	public void train(double sigma, String posTrain, String negTrain) {
-		this.sigma = sigma;
-		
+	private void load(String posTrain, String negTrain) {
 		double[][] posData   = parse(posTrain);
 		double[][] negData   = parse(negTrain);
 		
 		// Cache numbers
-		int features     = posData[0].length;
+		int features     = this.features = posData[0].length;
 		int posEntries   = this.posEntries = posData.length;
 		int negEntries   = negData.length;
 		int totalEntries = posEntries + negEntries;
@@ -127,96 +170,524 @@ public class kerpercep {
 			System.arraycopy(negData[i], 0, trainData[posEntries + i], 0, features);
 		}
 		
-		X = new Basic2DMatrix(trainData);
+		X = trainData;
 		
 		// Normalize X
-		double[] centroid = new double[X.columns()];
-		for (int i = 0; i < X.columns(); i++) {
-			centroid[i] = X.getColumn(i).sum() / X.rows();
+		centroid = new double[features];
+		for (int i = 0; i < totalEntries; i++) {
+			for (int j = 0; j < features; j++) {
+				centroid[j] += X[i][j];
+			}
+		}
+		for (int j = 0; j < features; j++) {
+			centroid[j] /= totalEntries;
 		}
-		double[][] avg = new double[X.rows()][X.columns()];
-		for (int i = 0; i < avg.length; i++) {
-			avg[i] = centroid;
+		for (int i = 0; i < totalEntries; i++) {
+			for (int j = 0; j < features; j++) {
+				X[i][j] -= centroid[j];
+			}
 		}
-		X = X.subtract(new Basic2DMatrix(avg));
+	}
+	
+	/**
+	 * Trains the kernel perceptron based on the training dataset.
+	 * @param sigma Sigma value to use
+	 * @param posTrain Path to positive dataset
+	 * @param negTrain Path to negative dataset
+	 */
+	public void train(double sigma, String posTrain, String negTrain) {
+		this.sigma = sigma;
+		load(posTrain, negTrain);
 		
+		alpha = new int[X.length];
+		svRows = null;
+		rff = null;
+		rffWeights = null;
+		if (randomFeatures > 0) {
+			trainRandomFeatures();
+		} else {
+			KernelCache cache = new KernelCache(X, sigma, cacheBudget, threads);
+			if (budget > 0) {
+				trainBudgeted(cache);
+			} else if (incremental) {
+				trainIncremental(cache);
+			} else {
+				trainRecompute(cache);
+			}
+			compact();
+		}
 		
-		posData = null;
-		negData = null;
+		StringBuilder sb = new StringBuilder();
+		sb.append("Alphas:");
+		for (int i = 0; i < alpha.length; ++i) {
+			sb.append(' ').append(alpha[i]);
+		}
+		sb.append('\n');
+		
+		System.out.println(sb.toString());
+	}
+	
+	/**
+	 * Trains and tests one model per sigma. The squared distances between
+	 * every pair of training rows are computed once and shared: each model
+	 * derives its kernel rows from them with an element-wise exp, and the
+	 * models are trained concurrently. Uses the exact kernel with incremental
+	 * (or, if a budget is set, budgeted) training.
+	 * @param sigmas Sigma values to try
+	 * @param posTrain Path to positive training dataset
+	 * @param negTrain Path to negative training dataset
+	 * @param posTest Path to positive testing dataset
+	 * @param negTest Path to negative testing dataset
+	 * @return Error rate in percent for each sigma
+	 */
+	public double[] sweep(final double[] sigmas, String posTrain,
+			String negTrain, String posTest, String negTest) {
+		load(posTrain, negTrain);
+		final double[][] distances = KernelCache.squaredDistances(X, threads);
+		final double[][] posData = parse(posTest);
+		final double[][] negData = parse(negTest);
+		final double[] errorRates = new double[sigmas.length];
 		
-		alpha = new int[totalEntries];
+		Parallel.forRange(sigmas.length, threads, new Parallel.Range() {
+			@Override
+			public void run(int from, int to) {
+				for (int s = from; s < to; ++s) {
+					kerpercep model = new kerpercep();
+					model.sigma      = sigmas[s];
+					model.X          = X;
+					model.centroid   = centroid;
+					model.features   = features;
+					model.posEntries = posEntries;
+					model.alpha      = new int[X.length];
+					model.maxEpochs  = maxEpochs;
+					model.budget     = budget;
+					model.removal    = removal;
+					model.threads    = 1;
+					
+					KernelCache cache = KernelCache.fromDistances(distances,
+							sigmas[s]);
+					if (budget > 0) {
+						model.trainBudgeted(cache);
+					} else {
+						model.trainIncremental(cache);
+					}
+					model.compact();
+					
+					int[] errors = model.errors(posData, negData);
+					errorRates[s] = (errors[0] + errors[1]) * 100.0
+							/ (posData.length + negData.length);
+				}
+			}
+		});
+		return errorRates;
+	}
+	
+	/**
+	 * Runs perceptron epochs until every training row is classified
+	 * correctly, recomputing each row's decision value from scratch.
+	 * @param cache Kernel values of the training rows
+	 */
+	private void trainRecompute(KernelCache cache) {
+		int totalEntries = X.length;
 		boolean converged = false;
+		int supportVectors = 0;
+		
+		int epochs = 0;
 		
-		while (!converged) {
+		// K(j, i) == K(i, j), so each row's sum can read its own kernel row,
+		// fetching one row per i. While every support vector's row fits in
+		// the LRU, reading their rows instead never misses.
+		while (!converged && (maxEpochs == 0 || epochs++ < maxEpochs)) {
 			converged = true;
 			for (int i = 0; i < totalEntries; ++i) {
 				int y_i = i >= posEntries ? -1 : 1;
+				boolean bySupport = supportVectors <= cache.cachedRows();
+				double[] row = bySupport ? null : cache.row(i);
 				double sum = 0.0;
 				for (int j = 0; j < totalEntries; ++j) {
+					if (alpha[j] == 0) continue;
 					int y_j = j >= posEntries ? -1 : 1;
-					sum += alpha[j] * y_j * K(X.getRow(i), X.getRow(j));
+					sum += alpha[j] * y_j * (bySupport ? cache.row(j)[i] : row[j]);
 				}
 				if (y_i * sum <= 0) {
+					if (alpha[i]++ == 0) {
+						++supportVectors;
+					}
+					converged = false;
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Runs perceptron epochs until every training row is classified
+	 * correctly, keeping a running decision value f[i] for every row. Each
+	 * mistake on row i adds y_i * K(i, j) to every f[j], so checking a row
+	 * costs O(1) and a mistake O(n).
+	 * @param cache Kernel values of the training rows
+	 */
+	private void trainIncremental(KernelCache cache) {
+		int totalEntries = X.length;
+		double[] f = new double[totalEntries];
+		boolean converged = false;
+		int epochs = 0;
+		
+		while (!converged && (maxEpochs == 0 || epochs++ < maxEpochs)) {
+			converged = true;
+			for (int i = 0; i < totalEntries; ++i) {
+				int y_i = i >= posEntries ? -1 : 1;
+				if (y_i * f[i] <= 0) {
 					++alpha[i];
 					converged = false;
+					double[] row = cache.row(i);
+					for (int j = 0; j < totalEntries; ++j) {
+						f[j] += y_i * row[j];
+					}
 				}
 			}
 		}
+	}
+	
+	/**
+	 * Runs incremental perceptron epochs with at most budget support vectors.
+	 * A mistake on a row that is not yet a support vector adds it; if that
+	 * takes the model over budget, another support vector is dropped: its
+	 * alpha is reset to 0 and alpha * y * K(r, j) is taken back out of every
+	 * f[j].
+	 * @param cache Kernel values of the training rows
+	 */
+	private void trainBudgeted(KernelCache cache) {
+		int totalEntries = X.length;
+		double[] f = new double[totalEntries];
+		int[] active = new int[budget + 1];
+		long[] addedAt = new long[totalEntries];
+		int count = 0;
+		long clock = 0;
+		boolean converged = false;
+		int epochs = 0;
+		int limit = maxEpochs > 0 ? maxEpochs : DEFAULT_APPROXIMATE_EPOCHS;
 		
-		StringBuilder sb = new StringBuilder();
-		sb.append("Alphas:");
+		while (!converged && epochs++ < limit) {
+			converged = true;
+			for (int i = 0; i < totalEntries; ++i) {
+				int y_i = i >= posEntries ? -1 : 1;
+				if (y_i * f[i] > 0) {
+					continue;
+				}
+				converged = false;
+				if (alpha[i] == 0) {
+					active[count++] = i;
+					addedAt[i] = clock++;
+				}
+				++alpha[i];
+				double[] row = cache.row(i);
+				for (int j = 0; j < totalEntries; ++j) {
+					f[j] += y_i * row[j];
+				}
+				
+				if (count > budget) {
+					// Pick a victim other than the row just updated
+					int victim = -1;
+					for (int s = 0; s < count; ++s) {
+						int r = active[s];
+						if (r == i) continue;
+						if (victim < 0) {
+							victim = s;
+							continue;
+						}
+						int v = active[victim];
+						boolean older = addedAt[r] < addedAt[v];
+						if (removal == Removal.OLDEST ? older
+								: alpha[r] < alpha[v]
+									|| (alpha[r] == alpha[v] && older)) {
+							victim = s;
+						}
+					}
+					int r = active[victim];
+					int y_r = r >= posEntries ? -1 : 1;
+					row = cache.row(r);
+					for (int j = 0; j < totalEntries; ++j) {
+						f[j] -= alpha[r] * y_r * row[j];
+					}
+					alpha[r] = 0;
+					active[victim] = active[--count];
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Trains a linear perceptron on random Fourier features of the training
+	 * rows. The features of every row are computed once up front if they fit
+	 * in the cache budget, and on the fly each epoch otherwise.
+	 */
+	private void trainRandomFeatures() {
+		final int totalEntries = X.length;
+		final RandomFeatures map = new RandomFeatures(features, randomFeatures,
+				sigma, seed);
+		final int D = map.features();
+		
+		final double[][] Z;
+		if ((long) totalEntries * D * 8 <= cacheBudget) {
+			Z = new double[totalEntries][D];
+			Parallel.forRange(totalEntries, threads, new Parallel.Range() {
+				@Override
+				public void run(int from, int to) {
+					for (int i = from; i < to; ++i) {
+						map.map(X[i], Z[i]);
+					}
+				}
+			});
+		} else {
+			Z = null;
+		}
+		
+		double[] w = new double[D];
+		double[] z = new double[D];
+		boolean converged = false;
+		int epochs = 0;
+		int limit = maxEpochs > 0 ? maxEpochs : DEFAULT_APPROXIMATE_EPOCHS;
+		
+		while (!converged && epochs++ < limit) {
+			converged = true;
+			for (int i = 0; i < totalEntries; ++i) {
+				int y_i = i >= posEntries ? -1 : 1;
+				double[] z_i = Z != null ? Z[i] : z;
+				if (Z == null) {
+					map.map(X[i], z);
+				}
+				if (y_i * Distances.dot(w, z_i, D) <= 0) {
+					++alpha[i];
+					converged = false;
+					for (int k = 0; k < D; ++k) {
+						w[k] += y_i * z_i[k];
+					}
+				}
+			}
+		}
+		
+		rff = map;
+		rffWeights = w;
+	}
+	
+	/**
+	 * Packs the rows with a nonzero alpha into the support vector model,
+	 * with alpha * y and the squared norm of each row precomputed.
+	 */
+	private void compact() {
+		svCount = 0;
 		for (int i = 0; i < alpha.length; ++i) {
-			sb.append(' ').append(alpha[i]);
+			if (alpha[i] != 0) ++svCount;
+		}
+		svRows = new double[svCount * features];
+		svCoef = new double[svCount];
+		svNorm = new double[svCount];
+		for (int i = 0, s = 0; i < alpha.length; ++i) {
+			if (alpha[i] == 0) continue;
+			System.arraycopy(X[i], 0, svRows, s * features, features);
+			svCoef[s] = alpha[i] * (i < posEntries ? 1 : -1);
+			svNorm[s] = Distances.dot(X[i], X[i], features);
+			++s;
+		}
+	}
+	
+	/**
+	 * Computes the decision value of a point, sum(alpha_j * y_j * K(x, x_j))
+	 * over the support vectors. Positive values classify as positive.
+	 * @param point Point in the original (uncentered) coordinates
+	 * @param centered Scratch space for the centered point
+	 * @param mapped Scratch space for random features, if in that mode
+	 * @return Decision value
+	 */
+	private double score(double[] point, double[] centered, double[] mapped) {
+		for (int j = 0; j < features; ++j) {
+			centered[j] = point[j] - centroid[j];
+		}
+		if (rff != null) {
+			rff.map(centered, mapped);
+			return Distances.dot(rffWeights, mapped, mapped.length);
 		}
-		sb.append('\n');
 		
-		System.out.println(sb.toString());
+		double norm = Distances.dot(centered, centered, features);
+		double sigmaSquared = sigma * sigma;
+		double sum = 0.0;
+		for (int s = 0; s < svCount; ++s) {
+			// |x - v|^2 = |x|^2 + |v|^2 - 2 x.v
+			double d = norm + svNorm[s]
+					- 2.0 * Distances.dot(centered, 0, svRows, s * features, features);
+			sum += svCoef[s] * Math.exp(-Math.max(d, 0.0) / sigmaSquared);
+		}
+		return sum;
 	}
 	
 	/**
-	 * Tests the kernel perceptron.
-	 * @param posTest Path to positive dataset
-	 * @param negTest Path to negative dataset
+	 * Saves the trained model: the centroid the rows were centered on and
+	 * either the packed support vectors or the random features and their
+	 * weights, so that a later run can score without training.
+	 * @param filename Path to the model file to write
 	 */
-	public void test(String posTest, String negTest) {
-		if (alpha == null || X == null) {
+	public void saveModel(String filename) {
+		if (svRows == null && rff == null) {
+			throw new IllegalStateException("ERROR: Please run train before running test.");
+		}
+		ModelFile.Writer out = null;
+		try {
+			out = new ModelFile.Writer(filename, "kerpercep");
+			out.putDouble(sigma);
+			out.putInt(features);
+			out.putDoubles(centroid);
+			if (rff != null) {
+				out.putString("rff");
+				rff.write(out);
+				out.putDoubles(rffWeights);
+			} else {
+				out.putString("exact");
+				out.putInt(svCount);
+				out.putDoubles(svRows);
+				out.putDoubles(svCoef);
+				out.putDoubles(svNorm);
+			}
+			out.close();
+			out = null;
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		} finally {
+			if (out != null) {
+				out.abort();
+			}
+		}
+	}
+	
+	/**
+	 * Loads a model saved by saveModel in place of training.
+	 * @param filename Path to the model file
+	 */
+	public void loadModel(String filename) {
+		ModelFile.Reader in = null;
+		try {
+			in = new ModelFile.Reader(filename, "kerpercep");
+			double sigma = in.getDouble();
+			int features = in.getInt();
+			double[] centroid = in.getDoubles();
+			if (centroid.length != features) {
+				throw in.corrupt("centroid does not match the features");
+			}
+			String mode = in.getString();
+			if (mode.equals("rff")) {
+				RandomFeatures rff = RandomFeatures.read(in);
+				double[] rffWeights = in.getDoubles();
+				if (rff.dims() != features
+						|| rffWeights.length != rff.features()) {
+					throw in.corrupt("random features do not match the model");
+				}
+				this.rff = rff;
+				this.rffWeights = rffWeights;
+				this.svRows = null;
+			} else if (mode.equals("exact")) {
+				int svCount = in.getInt();
+				double[] svRows = in.getDoubles();
+				double[] svCoef = in.getDoubles();
+				double[] svNorm = in.getDoubles();
+				if (svRows.length != (long) svCount * features
+						|| svCoef.length != svCount
+						|| svNorm.length != svCount) {
+					throw in.corrupt("support vectors do not match the model");
+				}
+				this.svCount = svCount;
+				this.svRows = svRows;
+				this.svCoef = svCoef;
+				this.svNorm = svNorm;
+				this.rff = null;
+				this.rffWeights = null;
+			} else {
+				throw in.corrupt("unknown mode " + mode);
+			}
+			this.sigma = sigma;
+			this.features = features;
+			this.centroid = centroid;
+			// Training state is not saved
+			this.alpha = null;
+			this.X = null;
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		} finally {
+			if (in != null) {
+				in.close();
+			}
+		}
+	}
+	
+	/**
+	 * Computes the decision values of a batch of points, splitting the batch
+	 * across the configured number of threads.
+	 * @param points Points in the original (uncentered) coordinates
+	 * @return Decision value of each point; positive values classify as
+	 *         positive
+	 */
+	public double[] score(final double[][] points) {
+		if (svRows == null && rff == null) {
 			throw new IllegalStateException("ERROR: Please run train before running test.");
 		}
-
-		int falseNeg = 0;
-		int falsePos = 0;
 		
-		double[][] negData = parse(negTest);
-		double[][] posData = parse(negTest);
+		final double[] result = new double[points.length];
+		Parallel.forRange(points.length, threads, new Parallel.Range() {
+			@Override
+			public void run(int from, int to) {
+				double[] centered = new double[features];
+				double[] mapped = new double[rff != null ? rff.features() : 0];
+				for (int i = from; i < to; ++i) {
+					result[i] = score(points[i], centered, mapped);
+				}
+			}
+		});
+		return result;
+	}
+	
+	/**
+	 * Counts the misclassified points of a testing set.
+	 * @param posData Positive points
+	 * @param negData Negative points
+	 * @return {false positives, false negatives}
+	 */
+	private int[] errors(double[][] posData, double[][] negData) {
+		int falsePos = 0;
+		int falseNeg = 0;
 		
 		// Calculate negatives (+ false positives)
-		Matrix Y = new Basic2DMatrix(negData);
-		for (int i = 0; i < Y.rows(); ++i) {
-			int y_i = -1;
-			double sum = 0.0;
-			for (int j = 0; j < X.rows(); ++j) {
-				int y_j = j < posEntries ? 1 : -1;
-				sum += alpha[j] * y_j * K(Y.getRow(i), X.getRow(j));
-			}
-			if (y_i * sum >= 0) {
+		double[] scores = score(negData);
+		for (int i = 0; i < scores.length; ++i) {
+			if (scores[i] >= 0) {
 				falsePos++;
 			}
 		}
-		System.out.println("False positives: " + falsePos);
 		
 		// Calculate positives (+ false negatives)
-		Y = new Basic2DMatrix(posData);
-		for (int i = 0; i < posData.length; ++i) {
-			int y_i = 1;
-			double sum = 0.0;
-			for (int j = 0; j < posData.length; ++j) {
-				int y_j = j < posEntries ? 1 : -1;
-				sum += alpha[j] * y_j * K(Y.getRow(i), X.getRow(j));
-			}
-			if (y_i * sum < 0) {
+		scores = score(posData);
+		for (int i = 0; i < scores.length; ++i) {
+			if (scores[i] < 0) {
 				falseNeg++;
 			}
 		}
+		return new int[] { falsePos, falseNeg };
+	}
+	
+	/**
+	 * Tests the kernel perceptron.
+	 * @param posTest Path to positive dataset
+	 * @param negTest Path to negative dataset
+	 */
+	public void test(String posTest, String negTest) {
+		if (svRows == null && rff == null) {
+			throw new IllegalStateException("ERROR: Please run train before running test.");
+		}
+
+		double[][] negData = parse(negTest);
+		double[][] posData = parse(posTest);
+		int[] errors = errors(posData, negData);
+		int falsePos = errors[0];
+		int falseNeg = errors[1];
+		
+		System.out.println("False positives: " + falsePos);
 		System.out.println("False negatives: " + falseNeg);
 		
 		int errorRate = (falseNeg + falsePos) * 100
@@ -229,15 +700,98 @@ public class kerpercep {
 	 */
 	private static void usage() {
 		throw new IllegalArgumentException(
-			"usage: java kerpercep sigma pos_train neg_train pos_test neg_test"
+			"usage: java kerpercep [-cache mb] [-threads n] [-recompute] "
+			+ "[-rff features] [-seed n] [-epochs n] "
+			+ "[-budget n] [-removal oldest|smallest] "
+			+ "[-sweep sigma,sigma,...] [-save model] "
+			+ "sigma pos_train neg_train pos_test neg_test\n"
+			+ "       java kerpercep [-threads n] -load model pos_test neg_test"
 		);
 	}
 	
 	public static void main(String args[]) {
-		if (args.length != 5) usage();
-		
 		kerpercep k = new kerpercep();
-		k.train(Double.parseDouble(args[0]), args[1], args[2]);
-		k.test(args[3], args[4]);
+		int rffFeatures = 0;
+		long seed = 0L;
+		int budget = 0;
+		Removal removal = Removal.SMALLEST;
+		double[] sweep = null;
+		String save = null;
+		String load = null;
+		int arg = 0;
+		while (arg < args.length && args[arg].startsWith("-")) {
+			if (args[arg].equals("-cache") && arg + 1 < args.length) {
+				k.setCacheBudget(Long.parseLong(args[arg + 1], 10) << 20);
+				arg += 2;
+			} else if (args[arg].equals("-threads") && arg + 1 < args.length) {
+				k.setThreads(Integer.parseInt(args[arg + 1], 10));
+				arg += 2;
+			} else if (args[arg].equals("-rff") && arg + 1 < args.length) {
+				rffFeatures = Integer.parseInt(args[arg + 1], 10);
+				arg += 2;
+			} else if (args[arg].equals("-seed") && arg + 1 < args.length) {
+				seed = Long.parseLong(args[arg + 1], 10);
+				arg += 2;
+			} else if (args[arg].equals("-epochs") && arg + 1 < args.length) {
+				k.setMaxEpochs(Integer.parseInt(args[arg + 1], 10));
+				arg += 2;
+			} else if (args[arg].equals("-budget") && arg + 1 < args.length) {
+				budget = Integer.parseInt(args[arg + 1], 10);
+				arg += 2;
+			} else if (args[arg].equals("-removal") && arg + 1 < args.length) {
+				removal = Removal.valueOf(args[arg + 1].toUpperCase());
+				arg += 2;
+			} else if (args[arg].equals("-sweep") && arg + 1 < args.length) {
+				String[] values = args[arg + 1].split(",");
+				sweep = new double[values.length];
+				for (int i = 0; i < values.length; ++i) {
+					sweep[i] = Double.parseDouble(values[i]);
+				}
+				arg += 2;
+			} else if (args[arg].equals("-save") && arg + 1 < args.length) {
+				save = args[arg + 1];
+				arg += 2;
+			} else if (args[arg].equals("-load") && arg + 1 < args.length) {
+				load = args[arg + 1];
+				arg += 2;
+			} else if (args[arg].equals("-recompute")) {
+				k.setIncremental(false);
+				arg += 1;
+			} else {
+				usage();
+			}
+		}
+		k.setRandomFeatures(rffFeatures, seed);
+		k.setBudget(budget, removal);
+		
+		if (load != null) {
+			if (sweep != null || args.length - arg != 2) usage();
+			k.loadModel(load);
+			if (save != null) {
+				k.saveModel(save);
+			}
+			k.test(args[arg], args[arg + 1]);
+			return;
+		}
+		if (sweep != null) {
+			if (args.length - arg != 4) usage();
+			double[] errorRates = k.sweep(sweep, args[arg], args[arg + 1],
+					args[arg + 2], args[arg + 3]);
+			StringBuilder sb = new StringBuilder();
+			sb.append("Sigma sweep:\n");
+			for (int i = 0; i < sweep.length; ++i) {
+				sb.append("sigma=").append(sweep[i]).append(" error=")
+					.append(errorRates[i]).append("%\n");
+			}
+			System.out.println(sb.toString());
+			return;
+		}
+		if (args.length - arg != 5) usage();
+		
+		k.train(Double.parseDouble(args[arg]), args[arg + 1], args[arg + 2]);
+		if (save != null) {
+			k.saveModel(save);
+		}
+		k.test(args[arg + 3], args[arg + 4]);
 	}
 }
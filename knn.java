@@ -1,118 +1,569 @@
-import java.io.BufferedReader;
-import java.io.FileReader;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
-import java.util.Hashtable;
-import java.util.Map;
-import java.util.Map.Entry;
-import java.util.PriorityQueue;
+import java.util.Arrays;
 
 /**
  * A k-nearest neighbors (kNN) classifier.
  * @author AbstractOwl
  */
 public class knn {
+	/**
+	 * Strategies for finding the nearest neighbors of a point.
+	 */
+	public enum Index {
+		/** Scan every training row */
+		BRUTE,
+		/** k-d tree; best for low dimensional data */
+		KDTREE,
+		/** Ball tree; holds up better in higher dimensions */
+		BALLTREE,
+		/** k-d tree up to KDTREE_MAX_DIMENSIONS, ball tree above */
+		AUTO,
+		/** Approximate HNSW graph; fastest in high dimensions, not exact */
+		HNSW,
+		/** Scan a single precision copy, re-rank the best in double */
+		FLOAT32,
+		/** Scan a byte quantized copy, re-rank the best in double */
+		INT8;
+		
+		/**
+		 * @return Whether the index re-ranks rows read in place from a file,
+		 *         rather than keeping the training rows on the heap
+		 */
+		boolean compact() {
+			return this == FLOAT32 || this == INT8;
+		}
+	}
+	
+	private static final int KDTREE_MAX_DIMENSIONS = 10;
+	// Rows measured per call to the one query, many rows distance kernel
+	private static final int SCAN_BLOCK = 256;
+	
 	private int k;
+	private Index index;
+	private int threads;
+	private int hnswM;
+	private int efConstruction;
+	private int efSearch;
+	private int rerank;
 	private double[][] trainData;
+	// Training rows read in place, for the compact indexes; trainData is
+	// null then
+	private MappedRows trainRows;
+	private int dimensions;
+	private int[] rowClass;
+	private int[] classLabels;
+	private NeighborIndex searchIndex;
+	// Index actually built, with AUTO resolved
+	private Index built;
+	// Distances of one block of a brute-force scan, per thread
+	private final ThreadLocal<double[]> scanBlock = new ThreadLocal<double[]>() {
+		@Override
+		protected double[] initialValue() {
+			return new double[SCAN_BLOCK];
+		}
+	};
 	
 	public knn(int k) {
+		this(k, Index.AUTO);
+	}
+	
+	public knn(int k, Index index) {
 		this.k = k;
+		this.index = index;
+		this.threads = Parallel.defaultThreads();
+		this.hnswM = 16;
+		this.efConstruction = 100;
+		this.efSearch = 50;
+		this.rerank = 4;
 		trainData = null;
+		trainRows = null;
+		searchIndex = null;
+		built = null;
 	}
 	
 	/**
-	 * Comparator 
+	 * Parses a dataset. Training rows carry a class label after their N
+	 * values; testing rows do not, and get an extra slot of -1 in its place.
+	 * @param filename Path to the data file
+	 * @param training If not training, pad an extra slot
+	 * @return A 2D double array constructed from parsed data
 	 */
-	private class EuclideanDistanceComparator implements Comparator<double[]> {
-		private double[] origin;
-		
-		public EuclideanDistanceComparator(double[] origin) {
-			this.origin = origin;
+	private double[][] parse(String filename, boolean training) {
+		return training
+				? ChunkedScan.load(filename, threads, 1, 0, 0.0)
+				: ChunkedScan.load(filename, threads, 0, 1, -1);
+	}
+	
+	/**
+	 * Sets the number of threads used to classify a batch of points.
+	 * @param threads Thread count; 1 classifies on the calling thread
+	 */
+	public void setThreads(int threads) {
+		if (threads < 1) {
+			throw new IllegalArgumentException("Thread count must be positive");
+		}
+		this.threads = threads;
+	}
+	
+	/**
+	 * Sets how the approximate (HNSW) index is built. Takes effect on the next
+	 * call to train.
+	 * @param m Links per row; more links raise recall, memory and build time
+	 * @param efConstruction Search width used while building the graph
+	 */
+	public void setHnswParameters(int m, int efConstruction) {
+		if (m < 2 || efConstruction < 1) {
+			throw new IllegalArgumentException("Invalid HNSW parameters");
+		}
+		this.hnswM = m;
+		this.efConstruction = efConstruction;
+	}
+	
+	/**
+	 * Sets the search width of the approximate (HNSW) index. Larger values
+	 * raise recall at the cost of latency. Can be changed after training.
+	 * @param efSearch Number of candidates kept during a search
+	 */
+	public void setEfSearch(int efSearch) {
+		if (efSearch < 1) {
+			throw new IllegalArgumentException("efSearch must be positive");
+		}
+		this.efSearch = efSearch;
+		if (searchIndex instanceof HnswIndex) {
+			((HnswIndex) searchIndex).setEfSearch(efSearch);
+		}
+	}
+	
+	/**
+	 * Sets how many candidates the compact (FLOAT32, INT8) indexes re-rank in
+	 * double precision, as a multiple of k. Takes effect on the next call to
+	 * train.
+	 * @param rerank Candidates kept per neighbor requested
+	 */
+	public void setRerank(int rerank) {
+		if (rerank < 1) {
+			throw new IllegalArgumentException("Rerank factor must be positive");
+		}
+		this.rerank = rerank;
+	}
+	
+	/**
+	 * Train the k-nearest neighbors classifier. Stores the training dataset
+	 * in memory and builds the configured search index over it. The compact
+	 * indexes (FLOAT32, INT8) keep only their compact copy in memory, and
+	 * read the rows they re-rank from a binary copy of the dataset in double
+	 * precision (see ChunkedScan.doubles), mapped rather than loaded.
+	 * 
+	 * @param train Path to training dataset
+	 */
+	public void train(String train) {
+		if (index.compact()) {
+			this.trainData = null;
+			this.trainRows = MappedRows.open(
+					ChunkedScan.doubles(train, threads, 1));
+			this.dimensions = trainRows.columns() - 1;
+		} else {
+			this.trainData = parse(train, true);
+			this.trainRows = null;
+			this.dimensions = trainData[0].length - 1; // Last index is classification
 		}
+		int n = trainData != null ? trainData.length : trainRows.rows();
 		
-		private double euclidDistance(double[] arg0, double[] arg1) {
-			if (arg0.length != arg1.length) {
-				throw new IllegalArgumentException("Array length mismatch");
-			}
-			
-			double accum = 0;
-			for (int i = 0; i < arg0.length - 1; ++i) { // Last index is classification
-				accum += Math.pow(arg0[i] - arg1[i], 2);
+		// Map labels onto dense class ids so votes can be counted in an array
+		int[] labels = new int[n];
+		double[] buffer = new double[dimensions + 1];
+		for (int i = 0; i < n; ++i) {
+			labels[i] = (int) row(i, buffer)[dimensions];
+		}
+		int[] sorted = labels.clone();
+		Arrays.sort(sorted);
+		int classes = 0;
+		for (int i = 0; i < sorted.length; ++i) {
+			if (i == 0 || sorted[i] != sorted[i - 1]) {
+				sorted[classes++] = sorted[i];
 			}
-			return Math.sqrt(accum);
+		}
+		classLabels = Arrays.copyOf(sorted, classes);
+		rowClass    = new int[labels.length];
+		for (int i = 0; i < labels.length; ++i) {
+			rowClass[i] = Arrays.binarySearch(classLabels, labels[i]);
 		}
 		
-		@Override
-		public int compare(double[] arg0, double[] arg1) {
-			double d0 = euclidDistance(origin, arg0);
-			double d1 = euclidDistance(origin, arg1);
-			return (int) Math.signum(d0 - d1);
+		Index type = index;
+		if (type == Index.AUTO) {
+			type = dimensions <= KDTREE_MAX_DIMENSIONS
+					? Index.KDTREE : Index.BALLTREE;
 		}
+		switch (type) {
+		case KDTREE:
+			searchIndex = new KdTree(trainData, dimensions);
+			break;
+		case BALLTREE:
+			searchIndex = new BallTree(trainData, dimensions);
+			break;
+		case HNSW:
+			searchIndex = new HnswIndex(trainData, dimensions, hnswM,
+					efConstruction, efSearch, 0L);
+			break;
+		case FLOAT32:
+			searchIndex = new CompactIndex(trainRows, dimensions,
+					CompactIndex.Format.FLOAT32, rerank);
+			break;
+		case INT8:
+			searchIndex = new CompactIndex(trainRows, dimensions,
+					CompactIndex.Format.INT8, rerank);
+			break;
+		default:
+			searchIndex = null;
+		}
+		built = type;
 	}
 	
 	/**
-	 * Parses a dataset.
-	 * @param filename Path to the data file
-	 * @param training If not training, pad an extra slot
-	 * @return A 2D double array constructed from parsed data
+	 * Saves the trained classifier: the training rows, their classes and the
+	 * built search index, so that a later run can classify without training.
+	 * @param filename Path to the model file to write
 	 */
-	private static double[][] parse(String filename, boolean training) {
-		double[][] result;
-		BufferedReader reader = null;
+	public void saveModel(String filename) {
+		if (rowClass == null) {
+			throw new IllegalStateException("Please run train first.");
+		}
+		ModelFile.Writer out = null;
 		try {
-			reader = new BufferedReader(new FileReader(filename));
-			
-			// Read Header
-			String[] header = reader.readLine().trim().split("\\s+");
-			if (header.length != 2) {
-				reader.close();
-				throw new IllegalArgumentException("Expected first line of file "
-						+ filename + " to be <M> <N>");
+			out = new ModelFile.Writer(filename, "knn");
+			out.putInt(dimensions);
+			out.putInts(classLabels);
+			out.putInts(rowClass);
+			if (trainData != null) {
+				out.putMatrix(trainData, dimensions + 1);
+			} else {
+				out.putMatrix(trainRows);
 			}
-			
-			// Parse file
-			int M = Integer.parseInt(header[0], 10);
-			int N = Integer.parseInt(header[1], 10) + 1;
-			result = new double[M][N];
-			
-			for (int i = 0; i < M; ++i) {
-				String[] line = reader.readLine().trim().split("\\s+");
-				
-				if (N != line.length + (training ? 0 : 1)) {
-					reader.close();
-					throw new IllegalArgumentException("Expected " + N
-							+ " parameters, found " + line.length);
-				}
-				
-				for (int j = 0; j < N; ++j) {
-					if (!training && j == N - 1) {
-						result[i][j] = -1;
-					} else {
-						result[i][j] = Double.parseDouble(line[j]);
-					}
-				}
+			out.putString(built.name());
+			if (searchIndex != null) {
+				searchIndex.write(out);
 			}
+			out.close();
+			out = null;
 		} catch (IOException e) {
 			throw new RuntimeException(e);
 		} finally {
+			if (out != null) {
+				out.abort();
+			}
+		}
+	}
+	
+	/**
+	 * Loads a classifier saved by saveModel in place of training. The index
+	 * is the one that was built; an HNSW index searches with the efSearch
+	 * set on this classifier. The compact indexes read their rows in place
+	 * from the model file.
+	 * @param filename Path to the model file
+	 */
+	public void loadModel(String filename) {
+		ModelFile.Reader in = null;
+		try {
+			in = new ModelFile.Reader(filename, "knn");
+			int dimensions = in.getInt();
+			int[] classLabels = in.getInts();
+			int[] rowClass = in.getInts();
+			MappedRows trainRows = in.mapMatrix();
+			if (dimensions < 1 || trainRows.rows() == 0
+					|| rowClass.length != trainRows.rows()
+					|| trainRows.columns() != dimensions + 1) {
+				throw in.corrupt("training rows do not match their classes");
+			}
+			for (int i = 0; i < rowClass.length; ++i) {
+				if (rowClass[i] < 0 || rowClass[i] >= classLabels.length) {
+					throw in.corrupt("class index out of range");
+				}
+			}
+			String name = in.getString();
+			Index type;
 			try {
-				reader.close();
-			} catch (IOException e) { /* I tried... */ }
+				type = Index.valueOf(name);
+			} catch (IllegalArgumentException e) {
+				throw in.corrupt("unknown index " + name);
+			}
+			double[][] trainData = null;
+			if (!type.compact()) {
+				trainData = trainRows.toArray();
+				trainRows = null;
+			}
+			NeighborIndex searchIndex;
+			switch (type) {
+			case KDTREE:
+				searchIndex = KdTree.read(in, trainData);
+				break;
+			case BALLTREE:
+				searchIndex = BallTree.read(in, trainData);
+				break;
+			case HNSW:
+				searchIndex = HnswIndex.read(in, trainData);
+				((HnswIndex) searchIndex).setEfSearch(efSearch);
+				break;
+			case FLOAT32:
+			case INT8:
+				searchIndex = CompactIndex.read(in, trainRows);
+				break;
+			default:
+				searchIndex = null;
+			}
+			this.dimensions  = dimensions;
+			this.classLabels = classLabels;
+			this.rowClass    = rowClass;
+			this.trainData   = trainData;
+			this.trainRows   = trainRows;
+			this.searchIndex = searchIndex;
+			this.built       = type;
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		} finally {
+			if (in != null) {
+				in.close();
+			}
+		}
+	}
+	
+	/**
+	 * Collects the k nearest training rows to a point into a heap, sorted
+	 * nearest first.
+	 * @param point Point to find neighbors of
+	 * @param heap Heap to collect neighbors into; cleared first
+	 */
+	private void nearest(double[] point, NeighborHeap heap) {
+		heap.clear();
+		if (searchIndex != null) {
+			searchIndex.search(point, heap);
+		} else {
+			scan(point, heap);
+		}
+		heap.sort();
+	}
+	
+	/**
+	 * @param i Training row
+	 * @param buffer Receives the row if it is read in place
+	 * @return Values of the row, class label last
+	 */
+	private double[] row(int i, double[] buffer) {
+		return trainData != null ? trainData[i] : trainRows.get(i, buffer);
+	}
+	
+	/**
+	 * Offers every training row to a heap. This is the exact brute-force
+	 * search.
+	 */
+	private void scan(double[] point, NeighborHeap heap) {
+		double[] distances = scanBlock.get();
+		double[] buffer = trainData != null ? null : new double[dimensions + 1];
+		for (int from = 0; from < rowClass.length; from += SCAN_BLOCK) {
+			int to = Math.min(from + SCAN_BLOCK, rowClass.length);
+			if (trainData != null) {
+				Distances.squaredEuclidean(point, trainData, from, to,
+						dimensions, distances);
+			} else {
+				for (int j = from; j < to; ++j) {
+					distances[j - from] = Distances.squaredEuclidean(point,
+							trainRows.get(j, buffer), dimensions);
+				}
+			}
+			for (int j = from; j < to; ++j) {
+				double d = distances[j - from];
+				if (d <= heap.bound()) {
+					heap.offer(d, j);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Does the k closest neighbors vote. Ties go to the class whose member is
+	 * closest to the point.
+	 * @param heap Neighbors sorted nearest first
+	 * @param votes Scratch counters, one per class
+	 * @return Winning class label
+	 */
+	private int vote(NeighborHeap heap, int[] votes) {
+		Arrays.fill(votes, 0);
+		int highestCount = 0;
+		for (int j = 0; j < heap.size(); ++j) {
+			int count = ++votes[rowClass[heap.index(j)]];
+			if (count > highestCount) {
+				highestCount = count;
+			}
+		}
+		for (int j = 0; j < heap.size(); ++j) {
+			int group = rowClass[heap.index(j)];
+			if (votes[group] == highestCount) {
+				return classLabels[group];
+			}
+		}
+		return -1;
+	}
+	
+	/**
+	 * Classifies a single point.
+	 * @param point Point to classify; only the first N features are read
+	 * @return Label voted for by the k nearest neighbors
+	 */
+	public int classify(double[] point) {
+		if (rowClass == null) {
+			throw new IllegalStateException("Please run train first.");
+		}
+		NeighborHeap heap = new NeighborHeap(Math.min(k, rowClass.length));
+		nearest(point, heap);
+		return vote(heap, new int[classLabels.length]);
+	}
+	
+	/**
+	 * Measures how well the configured index recovers the true k nearest
+	 * neighbors, comparing it against a brute-force scan. For the exact
+	 * indexes this is always 1.
+	 * @param points Query points, such as a sample of the testing dataset
+	 * @return Fraction of the true k nearest neighbors found, averaged over
+	 *         the points
+	 */
+	public double recall(double[][] points) {
+		if (rowClass == null) {
+			throw new IllegalStateException("Please run train first.");
+		}
+		int size = Math.min(k, rowClass.length);
+		NeighborHeap exact = new NeighborHeap(size);
+		NeighborHeap found = new NeighborHeap(size);
+		int[] truth = new int[size];
+		long hits = 0;
+		
+		for (int i = 0; i < points.length; ++i) {
+			exact.clear();
+			scan(points[i], exact);
+			for (int j = 0; j < size; ++j) {
+				truth[j] = exact.index(j);
+			}
+			Arrays.sort(truth);
+			
+			nearest(points[i], found);
+			for (int j = 0; j < found.size(); ++j) {
+				if (Arrays.binarySearch(truth, found.index(j)) >= 0) {
+					++hits;
+				}
+			}
+		}
+		return points.length == 0 ? 1.0
+				: (double) hits / ((long) points.length * size);
+	}
+	
+	/**
+	 * Classifies rows [from, to) of a batch into the matching slots of result.
+	 */
+	private void classify(double[][] points, int from, int to, int[] result) {
+		NeighborHeap heap = new NeighborHeap(Math.min(k, rowClass.length));
+		int[] votes = new int[classLabels.length];
+		for (int i = from; i < to; ++i) {
+			nearest(points[i], heap);
+			result[i] = vote(heap, votes);
+		}
+	}
+	
+	/**
+	 * Classifies a batch of points, splitting the batch across the configured
+	 * number of threads. Results are in the order of the input and identical
+	 * to classifying each point on its own.
+	 * @param points Points to classify
+	 * @return Label of each point
+	 */
+	public int[] classify(final double[][] points) {
+		if (rowClass == null) {
+			throw new IllegalStateException("Please run train first.");
 		}
 		
+		final int[] result = new int[points.length];
+		Parallel.forRange(points.length, threads, new Parallel.Range() {
+			@Override
+			public void run(int from, int to) {
+				classify(points, from, to, result);
+			}
+		});
 		return result;
 	}
 	
 	/**
-	 * Train the k-nearest neighbors classifier. Stores the training dataset
-	 * in memory.
-	 * 
-	 * @param train Path to training dataset
+	 * Scores every k from 1 to kMax by leave-one-out cross validation over
+	 * the training dataset. Each training row's neighbors are ranked once, up
+	 * to kMax, and every k is scored from that single ranking.
+	 * @param kMax Largest k to score
+	 * @return Accuracy for each k, indexed by k (index 0 is unused)
 	 */
-	public void train(String train) {
-		this.trainData = parse(train, true);
+	public double[] sweep(final int kMax) {
+		if (rowClass == null) {
+			throw new IllegalStateException("Please run train first.");
+		}
+		if (kMax < 1 || kMax >= rowClass.length) {
+			throw new IllegalArgumentException("k must be between 1 and "
+					+ (rowClass.length - 1));
+		}
+		
+		final long[] correct = new long[kMax + 1];
+		Parallel.forRange(rowClass.length, threads, new Parallel.Range() {
+			@Override
+			public void run(int from, int to) {
+				long[] hits = sweep(from, to, kMax);
+				synchronized (correct) {
+					for (int k = 1; k <= kMax; ++k) {
+						correct[k] += hits[k];
+					}
+				}
+			}
+		});
+		
+		double[] accuracy = new double[kMax + 1];
+		for (int k = 1; k <= kMax; ++k) {
+			accuracy[k] = (double) correct[k] / rowClass.length;
+		}
+		return accuracy;
+	}
+	
+	/**
+	 * Leave-one-out scores training rows [from, to) for every k up to kMax.
+	 * @return Number of rows classified correctly, indexed by k
+	 */
+	private long[] sweep(int from, int to, int kMax) {
+		NeighborHeap heap = new NeighborHeap(kMax + 1);
+		int[] votes = new int[classLabels.length];
+		int[] first = new int[classLabels.length];
+		long[] hits = new long[kMax + 1];
+		double[] buffer = new double[dimensions + 1];
+		
+		for (int i = from; i < to; ++i) {
+			nearest(row(i, buffer), heap);
+			Arrays.fill(votes, 0);
+			
+			// Add neighbors nearest first, skipping the row itself, and keep
+			// track of the winner of the vote over each prefix. Ties go to
+			// the class with the nearest member, as in vote().
+			int best = -1;
+			int k = 0;
+			for (int j = 0; j < heap.size() && k < kMax; ++j) {
+				if (heap.index(j) == i) {
+					continue;
+				}
+				int group = rowClass[heap.index(j)];
+				if (votes[group]++ == 0) {
+					first[group] = k;
+				}
+				if (best < 0 || votes[group] > votes[best]
+						|| (votes[group] == votes[best]
+							&& first[group] < first[best])) {
+					best = group;
+				}
+				++k;
+				if (best == rowClass[i]) {
+					++hits[k];
+				}
+			}
+		}
+		return hits;
 	}
 	
 	/**
@@ -123,6 +574,7 @@ public class knn {
 	 */
 	public void test(String test) {
 		double[][] testData = parse(test, false);
+		int[] labels = classify(testData);
 		StringBuilder sb = new StringBuilder();
 		
 		for (int i = 0; i < testData.length; ++i) {
@@ -132,70 +584,100 @@ public class knn {
 				sb.append(' ').append(testData[i][j]);
 			}
 			
-			PriorityQueue<double[]> heap = new PriorityQueue<double[]>(
-					trainData.length,
-					new EuclideanDistanceComparator(testData[i])
-			);
-			
-			for (int j = 0; j < trainData.length; ++j) {
-				heap.add(trainData[j]);
-			}
-			
-			Hashtable<Integer, Integer> count = new Hashtable<Integer, Integer>();
-			double[][] closest = new double[k][testData[i].length];
-			for (int j = 0; j < k; ++j) {
-				closest[j] = (double[]) heap.remove();
-				int index = (int) closest[j][closest[j].length - 1];
-				if (count.containsKey(index)) {
-					count.put(index, count.get(index) + 1);
-				} else {
-					count.put(index, new Integer(1));
-				}
-			}
-			
-			ArrayList<Map.Entry<Integer, Integer>> list =
-					new ArrayList<Entry<Integer, Integer>>(count.entrySet());
-			Collections.sort(list, new Comparator<Map.Entry<Integer, Integer>>() {
-				@Override
-				public int compare(Entry<Integer, Integer> arg0,
-						Entry<Integer, Integer> arg1) {
-					return (int) Math.signum(arg0.getValue() - arg1.getValue());
-				}
-			});
-			
-			// Do k closest neighbors vote
-			int highestIndex = -1;
-			int highestCount = -1;
-			for (int j = 0; j < list.size(); ++j) {
-				if (list.get(j).getValue() > highestCount) {
-					highestIndex = list.get(j).getKey();
-					highestCount = list.get(j).getValue();
-				} else if (list.get(j).getValue() == highestCount) { // Tie breaker
-					for (k = 0; k < closest.length; k++) {
-						int group = (int) closest[k][closest[k].length - 1];
-						if (group == list.get(j).getKey()
-								|| group == highestIndex) {
-							highestIndex = group;
-							break;
-						}
-					}
-				}
-			}
-			sb.append(" -- ").append(highestIndex).append('\n');
+			sb.append(" -- ").append(labels[i]).append('\n');
 		}
 		
 		System.out.println(sb.toString());
 	}
 	
 	private static void usage() {
-		throw new IllegalArgumentException("usage: java knn k train test");
+		throw new IllegalArgumentException("usage: java knn "
+				+ "[-index brute|kdtree|balltree|auto|hnsw|float32|int8] "
+				+ "[-threads n] [-m links] [-efc efConstruction] "
+				+ "[-ef efSearch] [-rerank factor] [-recall] [-save model] "
+				+ "k train test\n"
+				+ "       java knn [options] -load model k test\n"
+				+ "       java knn [options] -sweep kmax train");
 	}
 	
 	public static void main(String args[]) {
-		if (args.length != 3) usage();
+		Index index = Index.AUTO;
+		int threads = Parallel.defaultThreads();
+		int m = 16;
+		int efConstruction = 100;
+		int efSearch = 50;
+		int rerank = 4;
+		boolean recall = false;
+		boolean sweep = false;
+		String save = null;
+		String load = null;
+		int arg = 0;
+		while (arg < args.length && args[arg].startsWith("-")) {
+			if (args[arg].equals("-index") && arg + 1 < args.length) {
+				index = Index.valueOf(args[arg + 1].toUpperCase());
+				arg += 2;
+			} else if (args[arg].equals("-threads") && arg + 1 < args.length) {
+				threads = Integer.parseInt(args[arg + 1], 10);
+				arg += 2;
+			} else if (args[arg].equals("-m") && arg + 1 < args.length) {
+				m = Integer.parseInt(args[arg + 1], 10);
+				arg += 2;
+			} else if (args[arg].equals("-efc") && arg + 1 < args.length) {
+				efConstruction = Integer.parseInt(args[arg + 1], 10);
+				arg += 2;
+			} else if (args[arg].equals("-ef") && arg + 1 < args.length) {
+				efSearch = Integer.parseInt(args[arg + 1], 10);
+				arg += 2;
+			} else if (args[arg].equals("-rerank") && arg + 1 < args.length) {
+				rerank = Integer.parseInt(args[arg + 1], 10);
+				arg += 2;
+			} else if (args[arg].equals("-save") && arg + 1 < args.length) {
+				save = args[arg + 1];
+				arg += 2;
+			} else if (args[arg].equals("-load") && arg + 1 < args.length) {
+				load = args[arg + 1];
+				arg += 2;
+			} else if (args[arg].equals("-sweep")) {
+				sweep = true;
+				arg += 1;
+			} else if (args[arg].equals("-recall")) {
+				recall = true;
+				arg += 1;
+			} else {
+				usage();
+			}
+		}
+		int files = (sweep ? 1 : 2) - (load != null ? 1 : 0);
+		if (args.length - arg != 1 + files) usage();
 		
-		knn k = new knn(Integer.parseInt(args[0], 10));
-		k.train(args[1]);
-		k.test(args[2]);
+		knn k = new knn(Integer.parseInt(args[arg], 10), index);
+		k.setThreads(threads);
+		k.setHnswParameters(m, efConstruction);
+		k.setEfSearch(efSearch);
+		k.setRerank(rerank);
+		if (load != null) {
+			k.loadModel(load);
+		} else {
+			k.train(args[arg + 1]);
+		}
+		if (save != null) {
+			k.saveModel(save);
+		}
+		if (sweep) {
+			double[] accuracy = k.sweep(Integer.parseInt(args[arg], 10));
+			StringBuilder sb = new StringBuilder();
+			sb.append("Leave-one-out accuracy:\n");
+			for (int i = 1; i < accuracy.length; ++i) {
+				sb.append("k=").append(i).append(' ').append(accuracy[i])
+					.append('\n');
+			}
+			System.out.println(sb.toString());
+			return;
+		}
+		String test = args[arg + files];
+		if (recall) {
+			System.out.println("Recall: " + k.recall(k.parse(test, false)));
+		}
+		k.test(test);
 	}
 }
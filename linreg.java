@@ -1,12 +1,11 @@
-import java.io.BufferedReader;
-import java.io.FileReader;
+import java.io.BufferedWriter;
 import java.io.IOException;
-
-import org.la4j.LinearAlgebra;
-import org.la4j.matrix.Matrix;
-import org.la4j.matrix.dense.Basic2DMatrix;
-import org.la4j.vector.Vector;
-import org.la4j.vector.dense.BasicVector;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.text.DecimalFormatSymbols;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
 
 
 /**
@@ -17,109 +16,325 @@ import org.la4j.vector.dense.BasicVector;
  * @author AbstractOwl
  */
 public class linreg {
-	private Vector w;
+	/**
+	 * Ways of solving the least squares problem.
+	 */
+	public enum Solver {
+		/** Normal equations from streamed moments, solved by Cholesky */
+		CLOSED,
+		/** Conjugate gradient on the normal equations (CGLS) */
+		CG,
+		/** Mini-batch stochastic gradient descent */
+		SGD,
+		/** Closed form up to CLOSED_FORM_MAX_DIMENSIONS, CG above */
+		AUTO
+	}
+	
+	private static final int CLOSED_FORM_MAX_DIMENSIONS = 2000;
+	// Learning rate decay per SGD epoch
+	private static final double SGD_DECAY = 0.1;
+	// Rows scored per call to predict by test
+	private static final int SCORE_BLOCK = 1024;
+	// Whether "%6.3f" formats with an ASCII '.' and digits in this locale
+	private static final boolean ASCII_FORMAT = asciiFormat();
+	
+	private double[] w;
 	private double T;
+	private int threads;
+	private Moments moments;
+	private double forgetting;
+	private RecursiveLeastSquares online;
+	private Solver solver;
+	private double tolerance;
+	private int maxIterations;
+	private int batch;
+	private double rate;
+	private long seed;
 	
 	public linreg() {
 		w = null;
 		T = 0.0;
+		threads = Parallel.defaultThreads();
+		moments = null;
+		forgetting = 1.0;
+		online = null;
+		solver = Solver.AUTO;
+		tolerance = 1e-6;
+		maxIterations = 1000;
+		batch = 256;
+		rate = 0.0;
+		seed = 1;
 	}
 	
 	/**
-	 * Parses a dataset.
-	 * @param filename Path to the data file
-	 * @return A 2D double array constructed from parsed data
+	 * Sets how the least squares problem is solved.
+	 * @param solver Solver
 	 */
-	private static double[][] parse(String filename) {
-		double[][] result;
-		BufferedReader reader = null;
-		try {
-			reader = new BufferedReader(new FileReader(filename));
+	public void setSolver(Solver solver) {
+		this.solver = solver;
+	}
+	
+	/**
+	 * Sets the stopping rule of the iterative solvers.
+	 * @param tolerance Relative tolerance, see IterativeLeastSquares
+	 * @param maxIterations Iteration (or epoch) limit
+	 */
+	public void setConvergence(double tolerance, int maxIterations) {
+		if (!(tolerance > 0.0)) {
+			throw new IllegalArgumentException("Tolerance must be positive");
+		}
+		if (maxIterations < 1) {
+			throw new IllegalArgumentException(
+					"Iteration limit must be positive");
+		}
+		this.tolerance = tolerance;
+		this.maxIterations = maxIterations;
+	}
+	
+	/**
+	 * Sets the parameters of the SGD solver.
+	 * @param batch Rows per mini-batch
+	 * @param rate Initial learning rate, positive; 0 picks one from the data
+	 * @param seed Seed for shuffling rows
+	 */
+	public void setGradientDescent(int batch, double rate, long seed) {
+		if (batch < 1) {
+			throw new IllegalArgumentException("Batch size must be positive");
+		}
+		if (!(rate >= 0.0) || Double.isInfinite(rate)) {
+			throw new IllegalArgumentException(
+					"Learning rate must be positive, or 0 to pick one");
+		}
+		this.batch = batch;
+		this.rate = rate;
+		this.seed = seed;
+	}
+	
+	/**
+	 * Sets the number of threads used to read the training set.
+	 * @param threads Thread count
+	 */
+	public void setThreads(int threads) {
+		if (threads < 1) {
+			throw new IllegalArgumentException("Thread count must be positive");
+		}
+		this.threads = threads;
+	}
+	
+	/**
+	 * Sets the forgetting factor of online updates. Each update weights a row
+	 * seen t updates earlier by forgetting^t; 1 weights every row equally.
+	 * @param forgetting Forgetting factor in (0, 1]
+	 */
+	public void setForgetting(double forgetting) {
+		if (!(forgetting > 0.0 && forgetting <= 1.0)) {
+			throw new IllegalArgumentException(
+					"Forgetting factor must be in (0, 1]");
+		}
+		if (online != null) {
+			throw new IllegalStateException(
+					"Forgetting factor must be set before the first update");
+		}
+		this.forgetting = forgetting;
+	}
+	
+	/**
+	 * @return Copy of the current weights w
+	 */
+	public double[] weights() {
+		if (w == null) {
+			throw new IllegalStateException("Please run train first.");
+		}
+		return w.clone();
+	}
+	
+	/**
+	 * @return The current intercept T
+	 */
+	public double intercept() {
+		if (w == null) {
+			throw new IllegalStateException("Please run train first.");
+		}
+		return T;
+	}
+	
+	/**
+	 * Computes the w and T value from a training dataset.
+	 * 
+	 * The closed form reads the file once, reducing it to the mean and
+	 * scatter matrix of its rows, so memory is O(d^2) regardless of the
+	 * number of rows. Byte ranges of the file are reduced in parallel and
+	 * their moments merged. The iterative solvers instead hold the rows in
+	 * memory and never form the d x d matrix.
+	 * @param train Path to train file
+	 */
+	public void train(String train) {
+		Solver type = solver;
+		if (type == Solver.AUTO) {
+			type = ChunkedScan.columns(train) - 1 <= CLOSED_FORM_MAX_DIMENSIONS
+					? Solver.CLOSED : Solver.CG;
+		}
+		online = null;
+		
+		if (type == Solver.CLOSED) {
+			moments = ChunkedScan.reduce(train, threads, ChunkedScan.MOMENTS);
+			int d = moments.dims() - 1;
+			double[] mean = moments.mean();
+			double[][] scatter = moments.scatter();
 			
-			// Read Header
-			String[] header = reader.readLine().trim().split("\\s+");
-			if (header.length != 2) {
-				reader.close();
-				throw new IllegalArgumentException("Expected first line of file "
-						+ filename + " to be <M> <N>");
+			// Centered normal equations: (X_T * X) w = X_T * y, with X_T * X the
+			// top left d x d block of the scatter matrix and X_T * y the last
+			// column
+			double[][] XtX = new double[d][d];
+			double[]   Xty = new double[d];
+			for (int i = 0; i < d; ++i) {
+				System.arraycopy(scatter[i], 0, XtX[i], 0, d);
+				Xty[i] = scatter[i][d];
 			}
+			double[] weights = new Cholesky(XtX).solve(Xty);
+			w = weights;
 			
-			// Parse file
-			int M = Integer.parseInt(header[0], 10);
-			int N = Integer.parseInt(header[1], 10);
-			result = new double[M][N];
-			
-			for (int i = 0; i < M; ++i) {
-				String[] line = reader.readLine().trim().split("\\s+");
-				
-				if (N != line.length) {
-					reader.close();
-					throw new IllegalArgumentException("Expected " + N
-							+ " parameters, found " + line.length);
-				}
-				
-				for (int j = 0; j < N; ++j) {
-					result[i][j] = Double.parseDouble(line[j]);
+			// T = y_avg - w * X_centroid
+			T = mean[d] - Distances.dot(weights, mean, d);
+		} else {
+			moments = null;
+			IterativeLeastSquares solve = new IterativeLeastSquares(
+					ChunkedScan.load(train, threads), threads);
+			solve.setTolerance(tolerance);
+			solve.setMaxIterations(maxIterations);
+			double[] weights = type == Solver.CG
+					? solve.conjugateGradient()
+					: solve.gradientDescent(batch, rate, SGD_DECAY, seed);
+			w = weights;
+			T = solve.intercept(weights);
+		}
+		
+		System.out.println("[w, t]: " + format(w) + " " + T);
+	}
+	
+	/**
+	 * Folds new rows into the trained w and T with recursive least squares
+	 * updates, O(d^2) per row, instead of retraining on the full data.
+	 * @param update Path to a dataset of new rows, laid out like the
+	 *               training set
+	 */
+	public void update(String update) {
+		if (w == null) {
+			throw new IllegalStateException("Please run train first.");
+		}
+		if (moments == null) {
+			throw new IllegalStateException(
+					"Online updates need the closed form solver");
+		}
+		if (online == null) {
+			online = new RecursiveLeastSquares(moments, forgetting);
+		}
+		// Every row has the width of the header, so a file of the wrong width
+		// fails on its first row, before anything is folded in
+		final int columns = w.length + 1;
+		ChunkedScan.forEach(update, new ChunkedScan.RowHandler() {
+			@Override
+			public void accept(double[] row) {
+				if (row.length != columns) {
+					throw new IllegalArgumentException("Expected " + columns
+							+ " parameters, found " + row.length);
 				}
+				online.update(row);
+			}
+		});
+		w = online.weights();
+		T = online.intercept();
+		
+		System.out.println("[w, t]: " + format(w) + " " + T);
+	}
+	
+	/**
+	 * Saves the trained w and T, along with the state online updates carry
+	 * on from: the moments of the closed form fit and, once updated, the
+	 * recursive least squares state.
+	 * @param filename Path to the model file to write
+	 */
+	public void saveModel(String filename) {
+		if (w == null) {
+			throw new IllegalStateException("Please run train first.");
+		}
+		ModelFile.Writer out = null;
+		try {
+			out = new ModelFile.Writer(filename, "linreg");
+			out.putDoubles(w);
+			out.putDouble(T);
+			out.putInt(moments != null ? 1 : 0);
+			if (moments != null) {
+				moments.write(out);
 			}
+			out.putInt(online != null ? 1 : 0);
+			if (online != null) {
+				online.write(out);
+			}
+			out.close();
+			out = null;
 		} catch (IOException e) {
 			throw new RuntimeException(e);
 		} finally {
-			try {
-				reader.close();
-			} catch (IOException e) { /* I tried... */ }
+			if (out != null) {
+				out.abort();
+			}
 		}
-		
-		return result;
 	}
 	
 	/**
-	 * Computes the w and T value from a training dataset.
-	 * @param train Path to train file
+	 * Loads a model saved by saveModel in place of training. Online updates
+	 * of a model that was already updated carry on with the forgetting
+	 * factor they were started with.
+	 * @param filename Path to the model file
 	 */
-	public void train(String train) {
-		double[][] trainData = parse(train);
-		double[][] arrayX = new double[trainData.length][trainData[0].length - 1];
-		double[]   arrayY = new double[trainData.length];
-		
-		for (int i = 0; i < trainData.length; ++i) {
-			System.arraycopy(trainData[i], 0, arrayX[i], 0, trainData[0].length - 1);
-			arrayY[i] = trainData[i][trainData[0].length - 1];
+	public void loadModel(String filename) {
+		ModelFile.Reader in = null;
+		try {
+			in = new ModelFile.Reader(filename, "linreg");
+			double[] w = in.getDoubles();
+			double T = in.getDouble();
+			Moments moments = in.getInt() != 0 ? Moments.read(in) : null;
+			RecursiveLeastSquares online = in.getInt() != 0
+					? RecursiveLeastSquares.read(in) : null;
+			if ((moments != null && moments.dims() != w.length + 1)
+					|| (online != null && online.weights().length != w.length)) {
+				throw in.corrupt("fit state does not match the weights");
+			}
+			this.w = w;
+			this.T = T;
+			this.moments = moments;
+			this.online = online;
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		} finally {
+			if (in != null) {
+				in.close();
+			}
 		}
-		
-		Matrix X = new Basic2DMatrix(arrayX);
-		
-		// Normalize X
-		double[] centroid = new double[X.columns()];
-		for (int i = 0; i < X.columns(); i++) {
-			centroid[i] = X.getColumn(i).sum() / X.rows();
+	}
+	
+	/**
+	 * Computes the regression values of a block of rows, w * x + T for each,
+	 * as one matrix-vector product over contiguous storage.
+	 * @param block Rows of d features, row-major
+	 * @param rows Number of rows in the block
+	 * @param out Receives the regression value of each row
+	 */
+	public void predict(double[] block, int rows, double[] out) {
+		if (w == null) {
+			throw new IllegalStateException("Please run train first.");
 		}
-		double[][] avg_X = new double[X.rows()][X.columns()];
-		for (int i = 0; i < avg_X.length; i++) {
-			avg_X[i] = centroid;
+		int d = w.length;
+		for (int i = 0; i < rows; ++i) {
+			out[i] = Distances.dot(block, i * d, w, 0, d) + T;
 		}
-		X = X.subtract(new Basic2DMatrix(avg_X));
-		
-		Vector Y = new BasicVector(arrayY);
-		
-		// Normalize Y
-		double avg_Y = Y.sum() / Y.length();
-		Y = Y.subtract(avg_Y);
-		
-		// w = (x*y) / (x^2) => (X_T * X)^-1 * (X_T * y)
-		Matrix X_T = X.transpose();
-		Matrix m = (X_T.multiply(X)).withInverter(LinearAlgebra.GAUSS_JORDAN)
-						.inverse();
-		w = m.multiply(X_T).multiply(Y.toColumnMatrix()).toColumnVector();
-		// T = y_avg - w * X_centroid
-		T = w.multiply(new BasicVector(centroid).toColumnMatrix())
-				.subtract(avg_Y).multiply(-1).get(0);
-		
-		System.out.println("[w, t]: " + w + " " + T);
 	}
 	
 	/**
-	 * Computes the regression value, given w and T training values. 
+	 * Computes the regression value, given w and T training values. The test
+	 * set is streamed through in blocks of rows, each scored by predict and
+	 * written out before the next is read.
 	 * @param test Path to test dataset
 	 */
 	public void test(String test) {
@@ -127,34 +342,204 @@ public class linreg {
 			throw new IllegalStateException("ERROR: Please run train first");
 		}
 		
-		StringBuilder sb = new StringBuilder();
-		double[][] testData = parse(test);
+		final int d = w.length;
+		final double[] block = new double[SCORE_BLOCK * d];
+		final double[] regress = new double[SCORE_BLOCK];
+		final int[] filled = new int[1];
+		final long[] scored = new long[1];
+		final StringBuilder sb = new StringBuilder();
+		final Writer out = new BufferedWriter(
+				new OutputStreamWriter(System.out), 1 << 16);
 		
-		for (int i = 0; i < testData.length; i++) {
-			Vector v = new BasicVector(testData[i]);
-			double regress = v.multiply(w.toColumnMatrix()).sum() + T;
-			
-			sb.append(i + 1).append(". ").append(v).append(" -- ")
-				.append(regress).append('\n');
+		try {
+			ChunkedScan.forEach(test, new ChunkedScan.RowHandler() {
+				@Override
+				public void accept(double[] row) {
+					if (row.length != d) {
+						throw new IllegalArgumentException("Expected " + d
+								+ " parameters, found " + row.length);
+					}
+					System.arraycopy(row, 0, block, filled[0] * d, d);
+					if (++filled[0] == SCORE_BLOCK) {
+						scored[0] = write(block, filled[0], regress, scored[0],
+								sb, out);
+						filled[0] = 0;
+					}
+				}
+			});
+			write(block, filled[0], regress, scored[0], sb, out);
+			out.write('\n');
+			out.flush();
+		} catch (IOException e) {
+			throw new RuntimeException(e);
 		}
-		
-		System.out.println(sb.toString());
+	}
+	
+	/**
+	 * Scores a block of rows and writes a line for each.
+	 * @return Number of rows written so far
+	 */
+	private long write(double[] block, int rows, double[] regress, long done,
+			StringBuilder sb, Writer out) {
+		predict(block, rows, regress);
+		int d = w.length;
+		try {
+			for (int i = 0; i < rows; ++i) {
+				sb.setLength(0);
+				sb.append(done + i + 1).append(". ");
+				format(sb, block, i * d, d);
+				sb.append(" -- ").append(regress[i]).append('\n');
+				out.append(sb);
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		return done + rows;
+	}
+	
+	/**
+	 * Formats a vector as "[ 1.000, -2.000 ]", each value as "%6.3f".
+	 */
+	private static String format(double[] vector) {
+		StringBuilder sb = new StringBuilder();
+		format(sb, vector, 0, vector.length);
+		return sb.toString();
+	}
+	
+	private static void format(StringBuilder sb, double[] values, int offset,
+			int length) {
+		sb.append('[');
+		for (int i = 0; i < length; ++i) {
+			appendFixed(sb, values[offset + i]);
+			sb.append(i < length - 1 ? ", " : " ");
+		}
+		sb.append(']');
+	}
+	
+	/**
+	 * Appends a value as String.format("%6.3f") would, without allocating
+	 * a Formatter. Values whose rounding is not clear cut in binary, and
+	 * locales without ASCII digits, go through String.format.
+	 */
+	private static void appendFixed(StringBuilder sb, double value) {
+		double magnitude = Math.abs(value) * 1000.0;
+		double floor = Math.floor(magnitude);
+		double fraction = magnitude - floor;
+		if (!ASCII_FORMAT || !(magnitude < 1e9)
+				|| Math.abs(fraction - 0.5) < 1e-6) {
+			sb.append(String.format("%6.3f", value));
+			return;
+		}
+		long units = (long) floor + (fraction > 0.5 ? 1 : 0);
+		long whole = units / 1000;
+		int thousandths = (int) (units % 1000);
+		boolean negative = value < 0.0 || (value == 0.0 && 1.0 / value < 0.0);
+		int width = (negative ? 1 : 0) + Long.toString(whole).length() + 4;
+		for (int i = width; i < 6; ++i) {
+			sb.append(' ');
+		}
+		if (negative) {
+			sb.append('-');
+		}
+		sb.append(whole).append('.');
+		sb.append((char) ('0' + thousandths / 100))
+			.append((char) ('0' + thousandths / 10 % 10))
+			.append((char) ('0' + thousandths % 10));
+	}
+	
+	private static boolean asciiFormat() {
+		DecimalFormatSymbols symbols = DecimalFormatSymbols.getInstance(
+				Locale.getDefault(Locale.Category.FORMAT));
+		return symbols.getDecimalSeparator() == '.'
+				&& symbols.getZeroDigit() == '0'
+				&& symbols.getMinusSign() == '-';
 	}
 	
 	/**
 	 * Print usage information.
 	 */
 	private static void usage() {
-		throw new IllegalArgumentException("java linreg <train> <test>");
+		throw new IllegalArgumentException(
+				"java linreg [-threads n] [-solver closed|cg|sgd|auto] "
+				+ "[-tol t] [-iterations n] [-batch n] [-rate r] [-seed s] "
+				+ "[-forget lambda] [-update file]... [-save model] "
+				+ "<train> <test>\n"
+				+ "java linreg [-threads n] [-forget lambda] [-update file]... "
+				+ "[-save model] -load model <test>");
 	}
 	
 	public static void main(String args[]) {
-		if (args.length != 2) {
+		int threads = Parallel.defaultThreads();
+		double forgetting = 1.0;
+		List<String> updates = new ArrayList<String>();
+		Solver solver = Solver.AUTO;
+		double tolerance = 1e-6;
+		int iterations = 1000;
+		int batch = 256;
+		double rate = 0.0;
+		long seed = 1;
+		String save = null;
+		String load = null;
+		int arg = 0;
+		while (arg < args.length && args[arg].startsWith("-")) {
+			if (args[arg].equals("-threads") && arg + 1 < args.length) {
+				threads = Integer.parseInt(args[arg + 1], 10);
+				arg += 2;
+			} else if (args[arg].equals("-solver") && arg + 1 < args.length) {
+				solver = Solver.valueOf(args[arg + 1].toUpperCase());
+				arg += 2;
+			} else if (args[arg].equals("-tol") && arg + 1 < args.length) {
+				tolerance = Double.parseDouble(args[arg + 1]);
+				arg += 2;
+			} else if (args[arg].equals("-iterations") && arg + 1 < args.length) {
+				iterations = Integer.parseInt(args[arg + 1], 10);
+				arg += 2;
+			} else if (args[arg].equals("-batch") && arg + 1 < args.length) {
+				batch = Integer.parseInt(args[arg + 1], 10);
+				arg += 2;
+			} else if (args[arg].equals("-rate") && arg + 1 < args.length) {
+				rate = Double.parseDouble(args[arg + 1]);
+				arg += 2;
+			} else if (args[arg].equals("-seed") && arg + 1 < args.length) {
+				seed = Long.parseLong(args[arg + 1], 10);
+				arg += 2;
+			} else if (args[arg].equals("-forget") && arg + 1 < args.length) {
+				forgetting = Double.parseDouble(args[arg + 1]);
+				arg += 2;
+			} else if (args[arg].equals("-update") && arg + 1 < args.length) {
+				updates.add(args[arg + 1]);
+				arg += 2;
+			} else if (args[arg].equals("-save") && arg + 1 < args.length) {
+				save = args[arg + 1];
+				arg += 2;
+			} else if (args[arg].equals("-load") && arg + 1 < args.length) {
+				load = args[arg + 1];
+				arg += 2;
+			} else {
+				usage();
+			}
+		}
+		if (args.length - arg != (load != null ? 1 : 2)) {
 			usage();
 		}
 		
 		linreg l = new linreg();
-		l.train(args[0]);
-		l.test(args[1]);
+		l.setThreads(threads);
+		l.setSolver(solver);
+		l.setConvergence(tolerance, iterations);
+		l.setGradientDescent(batch, rate, seed);
+		l.setForgetting(forgetting);
+		if (load != null) {
+			l.loadModel(load);
+		} else {
+			l.train(args[arg++]);
+		}
+		for (String update : updates) {
+			l.update(update);
+		}
+		if (save != null) {
+			l.saveModel(save);
+		}
+		l.test(args[arg]);
 	}
 }
@@ -1,94 +1,88 @@
-import java.io.BufferedReader;
-import java.io.FileReader;
+import java.io.BufferedWriter;
+import java.io.FileInputStream;
 import java.io.IOException;
-
-import org.la4j.LinearAlgebra;
-import org.la4j.matrix.Matrix;
-import org.la4j.matrix.dense.Basic2DMatrix;
-import org.la4j.vector.Vector;
-import org.la4j.vector.dense.BasicVector;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 /**
  * Computes the Mahalanobis distances from the centroid of a set of training
  * points to each point in the testing set, using the training data to
  * construct the scatter matrix.
- * 
+ *
  * @author AbstractOwl
  */
 public class mahadist {
-	private Vector centroid;
-	private Matrix covariance;
-	
+	// Rows whitened per call to distances by test
+	private static final int SCORE_BLOCK = 256;
+	// How long a followed input is left before checking it for new rows
+	private static final long POLL_MILLIS = 250;
+
+	private double[] centroid;
+	private double[][] covariance;
+	private Cholesky factor;
+	private int threads;
+	private int window;
+	private double decay;
+
 	public mahadist() {
 		centroid = null;
 		covariance = null;
+		factor = null;
+		threads = Parallel.defaultThreads();
+		window = 0;
+		decay = 0.99;
 	}
-	
+
 	/**
-	 * Parses a dataset.
-	 * @param filename Path to the data file
-	 * @return A 2D double array constructed from parsed data
+	 * Sets the number of threads used to read the training set.
+	 * @param threads Thread count
 	 */
-	private static double[][] parse(String filename) {
-		double[][] result;
-		BufferedReader reader = null;
-		try {
-			reader = new BufferedReader(new FileReader(filename));
-			
-			// Read Header
-			String[] header = reader.readLine().trim().split("\\s+");
-			if (header.length != 2) {
-				reader.close();
-				throw new IllegalArgumentException("Expected first line of file "
-						+ filename + " to be <M> <N>");
-			}
-			
-			// Parse file
-			int M = Integer.parseInt(header[0], 10);
-			int N = Integer.parseInt(header[1], 10);
-			result = new double[M][N];
-			
-			for (int i = 0; i < M; ++i) {
-				String[] line = reader.readLine().trim().split("\\s+");
-				
-				if (N != line.length) {
-					reader.close();
-					throw new IllegalArgumentException("Expected " + N
-							+ " parameters, found " + line.length);
-				}
-				
-				for (int j = 0; j < N; ++j) {
-					result[i][j] = Double.parseDouble(line[j]);
-				}
-			}
-		} catch (IOException e) {
-			throw new RuntimeException(e);
-		} finally {
-			try {
-				reader.close();
-			} catch (IOException e) { /* I tried... */ }
+	public void setThreads(int threads) {
+		if (threads < 1) {
+			throw new IllegalArgumentException("Thread count must be positive");
+		}
+		this.threads = threads;
+	}
+
+	/**
+	 * Makes stream keep its model over a sliding window of the last points.
+	 * @param window Window length, which must exceed the dimensionality
+	 */
+	public void setWindow(int window) {
+		if (window < 2) {
+			throw new IllegalArgumentException("Window must be at least 2");
+		}
+		this.window = window;
+	}
+
+	/**
+	 * Makes stream keep its model over an exponentially decayed history.
+	 * @param decay Factor each point's weight shrinks by per new point, in
+	 *              (0, 1)
+	 */
+	public void setDecay(double decay) {
+		if (!(decay > 0.0 && decay < 1.0)) {
+			throw new IllegalArgumentException("Decay must be in (0, 1)");
 		}
-		
-		return result;
+		this.window = 0;
+		this.decay = decay;
 	}
-	
+
 	/**
 	 * Calculates the centroid and covariance matrix of a training data set.
+	 * The file is read once, with byte ranges of it reduced to moments in
+	 * parallel and merged, so memory is O(d^2) regardless of the number of
+	 * rows. The covariance is then factored once, as L * L_T, for scoring.
 	 * @param train String path of training dataset
 	 */
 	public void train(String train) {
-		double[][] trainData = parse(train);
-		double[]   centroid  = new double[trainData[0].length];
-		
-		// Calculate Centroid
-		for (int i = 0; i < trainData[0].length; ++i) {
-			for (int j = 0; j < trainData.length; ++j) {
-				centroid[i] += trainData[j][i];
-			}
-			centroid[i] /= trainData.length;
-		}
-		this.centroid = new BasicVector(centroid);
-		
+		Moments moments = ChunkedScan.reduce(train, threads,
+				ChunkedScan.MOMENTS);
+		centroid = moments.mean();
+
 		StringBuilder sb = new StringBuilder();
 		sb.append("Centroid: ");
 		for (int i = 0, j = centroid.length; i < j; ++i) {
@@ -96,90 +90,416 @@ public class mahadist {
 			sb.append(centroid[i]);
 		}
 		System.out.println(sb.toString());
-		
-		double[][] X_naught = new double[trainData.length][trainData[0].length];
-		for (int i = 0, N = X_naught.length; i < N; ++i) {
-			for (int j = 0, len = X_naught[0].length; j < len; ++j) {
-				X_naught[i][j] = trainData[i][j] - centroid[j];
-			}
-		}
-		Matrix X_n   = new Basic2DMatrix(X_naught);
-		Matrix X_n_T = X_n.transpose();
-		covariance   = X_n_T.multiply(X_n).divide(trainData.length);
-		
+
+		covariance = moments.covariance();
+		factor = new Cholesky(covariance);
+
 		sb = new StringBuilder();
 		sb.append("Covariance matrix:\n");
-		for (int i = 0; i < covariance.rows(); ++i) {
+		for (int i = 0; i < covariance.length; ++i) {
 			if (i != 0) sb.append("\n");
-			for (int j = 0; j < covariance.columns(); ++j) {
+			for (int j = 0; j < covariance[i].length; ++j) {
 				if (j != 0) sb.append(" ");
-				sb.append(covariance.get(i, j));
+				sb.append(covariance[i][j]);
 			}
 		}
 		System.out.println(sb.toString());
 	}
-	
-	private static double mahalanobis(Vector x, Vector y, Matrix cov) {
-		Vector delta  = x.subtract(y);
-		Matrix covInv = cov.withInverter(LinearAlgebra.GAUSS_JORDAN).inverse();
-		Matrix tmp    = delta.toRowMatrix().multiply(covInv)
-							.multiply(delta.toColumnMatrix());
-		return Math.sqrt(tmp.sum());
+
+	/**
+	 * Saves the trained centroid and covariance together with the Cholesky
+	 * factor of the covariance, so that a later run scores without reading
+	 * the training set or factoring again.
+	 * @param filename Path to the model file to write
+	 */
+	public void saveModel(String filename) {
+		if (factor == null) {
+			throw new IllegalStateException("Please run train first.");
+		}
+		ModelFile.Writer out = null;
+		try {
+			out = new ModelFile.Writer(filename, "mahadist");
+			out.putDoubles(centroid);
+			out.putMatrix(covariance, centroid.length);
+			factor.write(out);
+			out.close();
+			out = null;
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		} finally {
+			if (out != null) {
+				out.abort();
+			}
+		}
+	}
+
+	/**
+	 * Loads a model saved by saveModel in place of training.
+	 * @param filename Path to the model file
+	 */
+	public void loadModel(String filename) {
+		ModelFile.Reader in = null;
+		try {
+			in = new ModelFile.Reader(filename, "mahadist");
+			double[] centroid = in.getDoubles();
+			double[][] covariance = in.getMatrix();
+			Cholesky factor = Cholesky.read(in);
+			if (covariance.length != centroid.length
+					|| (covariance.length > 0
+							&& covariance[0].length != centroid.length)
+					|| factor.size() != centroid.length) {
+				throw in.corrupt("covariance does not match the centroid");
+			}
+			this.centroid = centroid;
+			this.covariance = covariance;
+			this.factor = factor;
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		} finally {
+			if (in != null) {
+				in.close();
+			}
+		}
+	}
+
+	/**
+	 * Computes the Mahalanobis distance of a point from the centroid,
+	 * sqrt(delta_T * cov^-1 * delta) = |L^-1 * delta|, with one triangular
+	 * solve against the factored covariance.
+	 * @param point Point to measure
+	 * @return Distance from the centroid
+	 */
+	public double mahalanobis(double[] point) {
+		if (factor == null) {
+			throw new IllegalStateException("Please run train first.");
+		}
+		double[] delta = new double[centroid.length];
+		for (int i = 0; i < delta.length; ++i) {
+			delta[i] = point[i] - centroid[i];
+		}
+		factor.forward(delta, delta);
+		return Math.sqrt(Distances.dot(delta, delta, delta.length));
+	}
+
+	/**
+	 * Computes the Mahalanobis distances of a block of points from the
+	 * centroid. The block is centered and whitened in place, each row
+	 * becoming L^-1 * (x - centroid), so the factor is swept through once
+	 * for the whole block.
+	 * @param block Points, row-major; overwritten with the whitened points
+	 * @param rows Number of points in the block
+	 * @param out Receives the distance of each point
+	 */
+	public void distances(double[] block, int rows, double[] out) {
+		if (factor == null) {
+			throw new IllegalStateException("Please run train first.");
+		}
+		int d = centroid.length;
+		for (int r = 0; r < rows; ++r) {
+			for (int i = 0; i < d; ++i) {
+				block[r * d + i] -= centroid[i];
+			}
+		}
+		factor.forward(block, rows, block);
+		for (int r = 0; r < rows; ++r) {
+			out[r] = Math.sqrt(Distances.dot(block, r * d, block, r * d, d));
+		}
 	}
-	
+
 	//private static boolean testMahalanobis() {
 	// test cases derived from:
 	// http://stat.ethz.ch/education/semesters/ss2012/ams/slides/v2.2.pdf
-	//	Vector y = new BasicVector(new double[] { 0, 0 });
-	//	Matrix cov = new Basic2DMatrix(new double[][] {
+	//	mahadist m = new mahadist();
+	//	m.centroid = new double[] { 0, 0 };
+	//	m.factor = new Cholesky(new double[][] {
 	//			new double[] {25, 0},
 	//			new double[] {0, 1}
 	//	});
 	//	return
-	//			(4.0  - mahalanobis(new BasicVector(new double[] { 20, 0 }), y, cov) < 1.0)
-	//		&&	(10.0 - mahalanobis(new BasicVector(new double[] { 0, 10 }), y, cov) < 1.0)
-	//		&&	(7.3  - mahalanobis(new BasicVector(new double[] { 10, 7 }), y, cov) < 1.0);
+	//			(4.0  - m.mahalanobis(new double[] { 20, 0 }) < 1.0)
+	//		&&	(10.0 - m.mahalanobis(new double[] { 0, 10 }) < 1.0)
+	//		&&	(7.3  - m.mahalanobis(new double[] { 10, 7 }) < 1.0);
 	//}
-	
+
 	/**
-	 * Computes the Mahalanobis distances from several
+	 * Computes the Mahalanobis distances from several points to the centroid.
+	 * The test set is streamed through in blocks of rows, each scored by
+	 * distances and written out before the next is read.
 	 * @param test String path of testing dataset
 	 */
 	public void test(String test) {
-		if (centroid == null || covariance == null) {
+		if (centroid == null || factor == null) {
 			throw new IllegalStateException("Please run train first.");
 		}
-		
+
+		final int d = centroid.length;
+		final double[] block = new double[SCORE_BLOCK * d];
+		final double[] original = new double[SCORE_BLOCK * d];
+		final double[] distance = new double[SCORE_BLOCK];
+		final int[] filled = new int[1];
+		final long[] scored = new long[1];
+		final StringBuilder sb = new StringBuilder();
+		final Writer out = new BufferedWriter(
+				new OutputStreamWriter(System.out), 1 << 16);
+
+		try {
+			out.write("Distances:\n");
+			ChunkedScan.forEach(test, new ChunkedScan.RowHandler() {
+				@Override
+				public void accept(double[] row) {
+					if (row.length != d) {
+						throw new IllegalArgumentException("Expected " + d
+								+ " parameters, found " + row.length);
+					}
+					System.arraycopy(row, 0, original, filled[0] * d, d);
+					if (++filled[0] == SCORE_BLOCK) {
+						scored[0] = write(original, block, filled[0], distance,
+								scored[0], sb, out);
+						filled[0] = 0;
+					}
+				}
+			});
+			write(original, block, filled[0], distance, scored[0], sb, out);
+			out.write('\n');
+			out.flush();
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Scores a block of rows and writes a line for each.
+	 * @return Number of rows written so far
+	 */
+	private long write(double[] original, double[] block, int rows,
+			double[] distance, long done, StringBuilder sb, Writer out) {
+		int d = centroid.length;
+		System.arraycopy(original, 0, block, 0, rows * d);
+		distances(block, rows, distance);
+		try {
+			for (int i = 0; i < rows; ++i) {
+				sb.setLength(0);
+				sb.append(done + i + 1).append('.');
+				for (int j = 0; j < d; ++j) {
+					sb.append(' ').append(original[i * d + j]);
+				}
+				sb.append(" -- ").append(distance[i]).append('\n');
+				out.append(sb);
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		return done + rows;
+	}
+
+	/**
+	 * Scores a stream of points, one per line, each against a model of the
+	 * points before it, and writes a line per point. The model is seeded
+	 * from the training set: the last points of it in window mode, or its
+	 * centroid and covariance in decay mode. Each point is then scored and
+	 * folded into the model in O(d^2).
+	 * @param train String path of training dataset
+	 * @param in Input of points, such as System.in
+	 * @param follow Whether to wait for more input at the end of the stream,
+	 *               like tail -f, rather than return
+	 */
+	public void stream(String train, InputStream in, boolean follow) {
+		final StreamingMahalanobis model;
+		if (window > 0) {
+			final double[][] ring = new double[window][];
+			final long[] seen = new long[1];
+			ChunkedScan.forEach(train, new ChunkedScan.RowHandler() {
+				@Override
+				public void accept(double[] row) {
+					ring[(int) (seen[0]++ % ring.length)] = row.clone();
+				}
+			});
+			if (seen[0] < window) {
+				throw new IllegalArgumentException("Expected at least " + window
+						+ " training rows, found " + seen[0]);
+			}
+			// Oldest first
+			double[][] rows = new double[window][];
+			for (int i = 0; i < window; ++i) {
+				rows[i] = ring[(int) ((seen[0] + i) % window)];
+			}
+			model = StreamingMahalanobis.window(rows);
+		} else {
+			Moments moments = ChunkedScan.reduce(train, threads,
+					ChunkedScan.MOMENTS);
+			model = StreamingMahalanobis.decayed(moments.mean(),
+					moments.covariance(), decay);
+		}
+
+		int d = model.dims();
+		double[] point = new double[d];
+		long count = 0;
 		StringBuilder sb = new StringBuilder();
-		sb.append("Distances:\n");
-		
-		double[][] testingData = parse(test);
-		for (int i = 0; i < testingData.length; i++) {
-			sb.append(i + 1).append('.');
-			for (int j = 0; j < testingData[0].length; j++) {
-				sb.append(' ').append(testingData[i][j]);
+		Writer out = new BufferedWriter(new OutputStreamWriter(System.out),
+				1 << 16);
+		byte[] buffer = new byte[1 << 16];
+		byte[] line = new byte[256];
+		int length = 0;
+		try {
+			while (true) {
+				int read = in.read(buffer);
+				if (read < 0) {
+					if (!follow) {
+						break;
+					}
+					out.flush();
+					try {
+						Thread.sleep(POLL_MILLIS);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						break;
+					}
+					continue;
+				}
+				for (int i = 0; i < read; ++i) {
+					if (buffer[i] != '\n') {
+						if (length == line.length) {
+							line = Arrays.copyOf(line, 2 * length);
+						}
+						line[length++] = buffer[i];
+						continue;
+					}
+					count = scoreLine(model, line, length, point, count, sb, out);
+					length = 0;
+				}
+				// Only hold output back while more input is already waiting
+				if (in.available() == 0) {
+					out.flush();
+				}
 			}
-			sb.append(" -- ");
-			Vector v = new BasicVector(testingData[i]);
-			sb.append(mahalanobis(v, centroid, covariance)).append('\n');
+			// A last line without a trailing newline
+			if (length > 0) {
+				scoreLine(model, line, length, point, count, sb, out);
+			}
+			out.flush();
+		} catch (IOException e) {
+			throw new RuntimeException(e);
 		}
-		System.out.println(sb.toString());
 	}
-	
+
+	/**
+	 * Scores one line of a stream, writes its output line and folds the
+	 * point into the model. Blank lines are skipped.
+	 * @param model Model of the points before this one
+	 * @param line Bytes of the line, without its newline
+	 * @param length Number of bytes in the line
+	 * @param point Receives the parsed point
+	 * @param count Number of points scored so far
+	 * @param sb Scratch builder for the output line
+	 * @param out Output
+	 * @return Number of points scored including this one
+	 */
+	private static long scoreLine(StreamingMahalanobis model, byte[] line,
+			int length, double[] point, long count, StringBuilder sb,
+			Writer out) throws IOException {
+		int values = ChunkedScan.parseRow(ByteBuffer.wrap(line), 0, length,
+				point);
+		if (values == 0) {
+			return count;
+		}
+		if (values != point.length) {
+			throw new IllegalArgumentException("Expected " + point.length
+					+ " parameters, found " + values);
+		}
+		sb.setLength(0);
+		sb.append(++count).append('.');
+		for (int j = 0; j < point.length; ++j) {
+			sb.append(' ').append(point[j]);
+		}
+		sb.append(" -- ").append(model.score(point)).append('\n');
+		out.append(sb);
+		model.update(point);
+		return count;
+	}
+
 	/**
 	 * Print usage information.
 	 */
 	private static void usage() {
-		throw new IllegalArgumentException("java mahadist <train> <test>");
+		throw new IllegalArgumentException(
+				"java mahadist [-threads n] [-save model] <train> <test>\n"
+				+ "java mahadist [-threads n] -load model <test>\n"
+				+ "java mahadist [-threads n] -stream [-window n | -decay d] "
+				+ "[-follow] <train> [input]");
 	}
-	
+
 	public static void main(String args[]) {
-		if (args.length != 2) {
+		mahadist m = new mahadist();
+		int threads = Parallel.defaultThreads();
+		boolean stream = false;
+		boolean follow = false;
+		String save = null;
+		String load = null;
+		int arg = 0;
+		while (arg < args.length && args[arg].startsWith("-")) {
+			if (args[arg].equals("-threads") && arg + 1 < args.length) {
+				threads = Integer.parseInt(args[arg + 1], 10);
+				arg += 2;
+			} else if (args[arg].equals("-window") && arg + 1 < args.length) {
+				m.setWindow(Integer.parseInt(args[arg + 1], 10));
+				arg += 2;
+			} else if (args[arg].equals("-decay") && arg + 1 < args.length) {
+				m.setDecay(Double.parseDouble(args[arg + 1]));
+				arg += 2;
+			} else if (args[arg].equals("-stream")) {
+				stream = true;
+				arg += 1;
+			} else if (args[arg].equals("-follow")) {
+				follow = true;
+				arg += 1;
+			} else if (args[arg].equals("-save") && arg + 1 < args.length) {
+				save = args[arg + 1];
+				arg += 2;
+			} else if (args[arg].equals("-load") && arg + 1 < args.length) {
+				load = args[arg + 1];
+				arg += 2;
+			} else {
+				usage();
+			}
+		}
+		m.setThreads(threads);
+
+		if (stream) {
+			if (load != null || save != null
+					|| (args.length - arg != 1 && args.length - arg != 2)) {
+				usage();
+			}
+			if (args.length - arg == 1) {
+				m.stream(args[arg], System.in, follow);
+				return;
+			}
+			InputStream in = null;
+			try {
+				in = new FileInputStream(args[arg + 1]);
+				m.stream(args[arg], in, follow);
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			} finally {
+				try {
+					if (in != null) {
+						in.close();
+					}
+				} catch (IOException e) { /* I tried... */ }
+			}
+			return;
+		}
+		if (args.length - arg != (load != null ? 1 : 2)) {
 			usage();
 		}
-		
-		mahadist m = new mahadist();
-		m.train(args[0]);
-		m.test(args[1]);
+
+		if (load != null) {
+			m.loadModel(load);
+		} else {
+			m.train(args[arg++]);
+		}
+		if (save != null) {
+			m.saveModel(save);
+		}
+		m.test(args[arg]);
 	}
 }